@@ -16,6 +16,13 @@ android {
     defaultConfig {
         minSdk = libMinSdk
         compileSdk = libCompileSdk
+
+        testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
+    }
+
+    sourceSets {
+        // The instrumented tests use the sample document
+        getByName("androidTest").assets.srcDir("../sample/src/main/assets")
     }
 
     publishing {
@@ -40,6 +47,10 @@ dependencies {
     implementation(libs.viewpager2)
 
     api(libs.pdfium)
+
+    testImplementation(libs.junit)
+    androidTestImplementation(libs.test.ext.junit)
+    androidTestImplementation(libs.test.runner)
 }
 
 afterEvaluate {
@@ -0,0 +1,178 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.infomaniak.lib.pdfview.util.Constants;
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+import com.shockwave.pdfium.util.Size;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+/**
+ * Compares rendering a block of parts with one pdfium call per part, as done before coalescing, to rendering their
+ * union once and slicing it, as {@link RenderingHandler} does for adjacent parts. The timings are logged, the test
+ * only fails if the sliced parts differ from the ones rendered separately.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CoalescedRenderingBenchmark {
+
+    private static final String TAG = CoalescedRenderingBenchmark.class.getSimpleName();
+
+    /**
+     * Parts per side of the block, so that their union has {@link Constants#MAX_COALESCED_PIXELS}
+     */
+    private static final int GRID_SIZE = 4;
+    /**
+     * Width of the rendered pages, zoomed in so that the block is inside them
+     */
+    private static final int PAGE_WIDTH = 2048;
+    private static final int PAGES_COUNT = 4;
+    private static final int WARM_UP_RUNS = 2;
+    private static final int RUNS = 10;
+    /**
+     * pdfium may anti-alias a few edge pixels differently depending on the render origin
+     */
+    private static final float MAX_DIFFERENT_PIXELS_RATIO = 0.001f;
+
+    private PdfiumCore pdfiumCore;
+    private PdfDocument document;
+
+    private final int partSize = (int) Constants.PART_SIZE;
+    private final Bitmap[] parts = new Bitmap[GRID_SIZE * GRID_SIZE];
+    private final Bitmap[] slicedParts = new Bitmap[GRID_SIZE * GRID_SIZE];
+    private final Canvas sliceCanvas = new Canvas();
+    private final Paint slicePaint = new Paint();
+    private final Rect sliceSrcRect = new Rect();
+    private final Rect sliceDstRect = new Rect(0, 0, partSize, partSize);
+    private Bitmap scratch;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        pdfiumCore = new PdfiumCore(context);
+        document = SampleDocument.copy(context).createDocument(context, pdfiumCore, null);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = Bitmap.createBitmap(partSize, partSize, Bitmap.Config.ARGB_8888);
+            slicedParts[i] = Bitmap.createBitmap(partSize, partSize, Bitmap.Config.ARGB_8888);
+        }
+        scratch = Bitmap.createBitmap(GRID_SIZE * partSize, GRID_SIZE * partSize, Bitmap.Config.ARGB_8888);
+        slicePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    @After
+    public void tearDown() {
+        pdfiumCore.closeDocument(document);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i].recycle();
+            slicedParts[i].recycle();
+        }
+        scratch.recycle();
+    }
+
+    @Test
+    public void coalescedAgainstPerPartRendering() {
+        int pagesCount = Math.min(PAGES_COUNT, pdfiumCore.getPageCount(document));
+        int[] partPixels = new int[partSize * partSize];
+        int[] slicedPixels = new int[partSize * partSize];
+        long perPartNanos = 0;
+        long coalescedNanos = 0;
+        long differentPixels = 0;
+        for (int page = 0; page < pagesCount; page++) {
+            pdfiumCore.openPage(document, page);
+            Size pageSize = pdfiumCore.getPageSize(document, page);
+            int pageHeight = Math.round(PAGE_WIDTH * (float) pageSize.getHeight() / pageSize.getWidth());
+            // The block of parts at the center of the page
+            int left = Math.max(0, (PAGE_WIDTH - GRID_SIZE * partSize) / 2);
+            int top = Math.max(0, (pageHeight - GRID_SIZE * partSize) / 2);
+
+            for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+                long startNanos = System.nanoTime();
+                renderPerPart(page, left, top, pageHeight);
+                long perPartEndNanos = System.nanoTime();
+                renderCoalesced(page, left, top, pageHeight);
+                long coalescedEndNanos = System.nanoTime();
+                if (run >= WARM_UP_RUNS) {
+                    perPartNanos += perPartEndNanos - startNanos;
+                    coalescedNanos += coalescedEndNanos - perPartEndNanos;
+                }
+            }
+
+            for (int i = 0; i < parts.length; i++) {
+                parts[i].getPixels(partPixels, 0, partSize, 0, 0, partSize, partSize);
+                slicedParts[i].getPixels(slicedPixels, 0, partSize, 0, 0, partSize, partSize);
+                for (int j = 0; j < partPixels.length; j++) {
+                    if (partPixels[j] != slicedPixels[j]) {
+                        differentPixels++;
+                    }
+                }
+            }
+        }
+
+        long renders = (long) pagesCount * RUNS;
+        Log.i(TAG, "Block of " + GRID_SIZE + "x" + GRID_SIZE + " parts of " + partSize + "px, average over "
+                + renders + " renders: per part " + perPartNanos / renders / 1000 + "us, coalesced "
+                + coalescedNanos / renders / 1000 + "us");
+        long pixels = (long) pagesCount * parts.length * partSize * partSize;
+        assertTrue(differentPixels + " different pixels", differentPixels <= pixels * MAX_DIFFERENT_PIXELS_RATIO);
+    }
+
+    private void renderPerPart(int page, int left, int top, int pageHeight) {
+        for (int row = 0; row < GRID_SIZE; row++) {
+            for (int col = 0; col < GRID_SIZE; col++) {
+                Bitmap part = parts[row * GRID_SIZE + col];
+                part.eraseColor(0);
+                pdfiumCore.renderPageBitmap(document, part, page,
+                        -(left + col * partSize), -(top + row * partSize), PAGE_WIDTH, pageHeight, false);
+            }
+        }
+    }
+
+    private void renderCoalesced(int page, int left, int top, int pageHeight) {
+        scratch.eraseColor(0);
+        pdfiumCore.renderPageBitmap(document, scratch, page, -left, -top, PAGE_WIDTH, pageHeight, false);
+        for (int row = 0; row < GRID_SIZE; row++) {
+            for (int col = 0; col < GRID_SIZE; col++) {
+                Bitmap part = slicedParts[row * GRID_SIZE + col];
+                sliceSrcRect.set(col * partSize, row * partSize, (col + 1) * partSize, (row + 1) * partSize);
+                sliceCanvas.setBitmap(part);
+                sliceCanvas.drawBitmap(scratch, sliceSrcRect, sliceDstRect, slicePaint);
+            }
+        }
+        sliceCanvas.setBitmap(null);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.infomaniak.lib.pdfview.exception.PageRenderingException;
+import com.infomaniak.lib.pdfview.source.FileSource;
+import com.infomaniak.lib.pdfview.util.FitPolicy;
+import com.shockwave.pdfium.PdfiumCore;
+import com.shockwave.pdfium.util.Size;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens, renders and closes the pages of several documents from several threads at once, like the rendering workers
+ * of several PDFViews do, following the {@link PdfFile.DocumentHandle} contract: each handle is only rendered from
+ * one thread, and the main document is only replaced by the thread using it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PdfFileConcurrencyTest {
+
+    private static final int DOCUMENTS_COUNT = 3;
+    private static final int WORKERS_PER_DOCUMENT = 3;
+    private static final int ROUNDS = 200;
+    /**
+     * Rounds after which a worker replaces its handle, closing its pages
+     */
+    private static final int HANDLE_ROUNDS = 25;
+    private static final int RENDER_SIZE = 64;
+
+    private Context context;
+    private PdfiumCore pdfiumCore;
+    private FileSource documentSource;
+    /**
+     * Lets all the workers start at once
+     */
+    private CountDownLatch start;
+    private final List<PdfFile> pdfFiles = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        pdfiumCore = new PdfiumCore(context);
+        documentSource = SampleDocument.copy(context);
+    }
+
+    @After
+    public void tearDown() {
+        for (PdfFile pdfFile : pdfFiles) {
+            pdfFile.dispose();
+        }
+    }
+
+    @Test
+    public void openRenderAndCloseConcurrently() throws Exception {
+        DisplayOptions displayOptions = new DisplayOptions(true, new PDFSpacing(0, 0, 0, false), false,
+                new Size(1080, 1920), FitPolicy.WIDTH);
+        List<Worker> workers = new ArrayList<>();
+        List<AtomicInteger> openedPages = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS_COUNT; i++) {
+            PdfFile pdfFile = new PdfFile(pdfiumCore, documentSource.createDocument(context, pdfiumCore, null), null,
+                    displayOptions, null, null, false, 0);
+            pdfFiles.add(pdfFile);
+            AtomicInteger documentOpenedPages = new AtomicInteger();
+            openedPages.add(documentOpenedPages);
+            workers.add(new Worker(pdfFile, null, documentOpenedPages, i));
+            for (int j = 1; j < WORKERS_PER_DOCUMENT; j++) {
+                PdfFile.DocumentHandle handle = newHandle(pdfFile);
+                workers.add(new Worker(pdfFile, handle, documentOpenedPages, i * WORKERS_PER_DOCUMENT + j));
+            }
+        }
+
+        start = new CountDownLatch(workers.size());
+        ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+        try {
+            List<Future<PdfFile.DocumentHandle>> results = executor.invokeAll(workers, 2, TimeUnit.MINUTES);
+            for (int i = 0; i < DOCUMENTS_COUNT; i++) {
+                PdfFile pdfFile = pdfFiles.get(i);
+                int handlesOpenedPages = 0;
+                for (int j = 0; j < WORKERS_PER_DOCUMENT; j++) {
+                    PdfFile.DocumentHandle handle = results.get(i * WORKERS_PER_DOCUMENT + j).get();
+                    handlesOpenedPages += handle.getOpenedPagesCount();
+                }
+                assertTrue(openedPages.get(i).get() > 0);
+                assertEquals(handlesOpenedPages, pdfFile.getOpenedPagesCount());
+                assertEquals(openedPages.get(i).get(), pdfFile.getOpenedPagesCount() + pdfFile.getClosedPagesCount());
+
+                for (int j = 1; j < WORKERS_PER_DOCUMENT; j++) {
+                    results.get(i * WORKERS_PER_DOCUMENT + j).get().close();
+                }
+                assertEquals(pdfFile.getMainHandle().getOpenedPagesCount(), pdfFile.getOpenedPagesCount());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private PdfFile.DocumentHandle newHandle(PdfFile pdfFile) throws IOException {
+        return pdfFile.newHandle(documentSource.createDocument(context, pdfiumCore, null));
+    }
+
+    /**
+     * Opens and renders random pages in its handle, and replaces it every {@link #HANDLE_ROUNDS}. Without a handle,
+     * works on the main one like the UI and the first rendering worker, replacing the main document instead.
+     *
+     * @return the handle it ends with
+     */
+    private final class Worker implements Callable<PdfFile.DocumentHandle> {
+
+        private final PdfFile pdfFile;
+        private PdfFile.DocumentHandle handle;
+        private final AtomicInteger openedPages;
+        private final Random random;
+
+        Worker(PdfFile pdfFile, PdfFile.DocumentHandle handle, AtomicInteger openedPages, long seed) {
+            this.pdfFile = pdfFile;
+            this.handle = handle;
+            this.openedPages = openedPages;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public PdfFile.DocumentHandle call() throws Exception {
+            boolean isMain = handle == null;
+            if (isMain) {
+                handle = pdfFile.getMainHandle();
+            }
+            Bitmap bitmap = Bitmap.createBitmap(RENDER_SIZE, RENDER_SIZE, Bitmap.Config.RGB_565);
+            Rect bounds = new Rect(0, 0, RENDER_SIZE, RENDER_SIZE);
+            start.countDown();
+            start.await();
+            try {
+                for (int round = 1; round <= ROUNDS; round++) {
+                    int page = random.nextInt(pdfFile.getPagesCount());
+                    openPage(page);
+                    handle.renderPageBitmap(bitmap, page, bounds, false);
+                    if (isMain) {
+                        pdfFile.getPageLinks(page);
+                    }
+                    if (round % HANDLE_ROUNDS == 0) {
+                        replaceHandle(isMain);
+                    }
+                }
+            } finally {
+                bitmap.recycle();
+            }
+            return handle;
+        }
+
+        private void openPage(int page) throws PageRenderingException {
+            if (handle.openPage(page)) {
+                openedPages.incrementAndGet();
+            }
+        }
+
+        private void replaceHandle(boolean isMain) throws IOException {
+            if (isMain) {
+                assertTrue(pdfFile.replaceMainDocument(documentSource.createDocument(context, pdfiumCore, null)));
+            } else {
+                handle.close();
+                handle = newHandle(pdfFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.infomaniak.lib.pdfview.source.FileSource;
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+import com.shockwave.pdfium.util.Size;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures whether rendering on several threads, each with its own document like the rendering workers, is faster
+ * than on one. The pdfium binding serializes its native calls, so only the work around them runs in parallel. Extra
+ * rendering threads, see {@link PDFView.Configurator#renderingThreads(int)}, are only worth their memory on the
+ * devices where this shows a speedup. The timings are logged, the test doesn't fail on them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RenderingThreadsBenchmark {
+
+    private static final String TAG = RenderingThreadsBenchmark.class.getSimpleName();
+
+    private static final int[] THREADS_COUNTS = {1, 2, 4};
+    private static final int PAGES_COUNT = 8;
+    /**
+     * Width of the rendered pages, about a screen
+     */
+    private static final int PAGE_WIDTH = 1080;
+    private static final int WARM_UP_RUNS = 1;
+    private static final int RUNS = 5;
+
+    private Context context;
+    private PdfiumCore pdfiumCore;
+    private FileSource documentSource;
+
+    @Before
+    public void setUp() throws IOException {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        pdfiumCore = new PdfiumCore(context);
+        documentSource = SampleDocument.copy(context);
+    }
+
+    @Test
+    public void renderingThreads() throws Exception {
+        long singleThreadNanos = 0;
+        for (int threadsCount : THREADS_COUNTS) {
+            long nanos = measure(threadsCount);
+            if (threadsCount == 1) {
+                singleThreadNanos = nanos;
+            }
+            Log.i(TAG, threadsCount + " rendering threads: " + nanos / RUNS / 1_000_000 + "ms for " + PAGES_COUNT
+                    + " pages, speedup " + (float) singleThreadNanos / nanos);
+        }
+    }
+
+    /**
+     * @return the nanoseconds taken by the runs to render the pages on that many threads
+     */
+    private long measure(int threadsCount) throws Exception {
+        List<PdfDocument> documents = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadsCount);
+        try {
+            for (int i = 0; i < threadsCount; i++) {
+                documents.add(documentSource.createDocument(context, pdfiumCore, null));
+            }
+            long nanos = 0;
+            for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+                List<Callable<Void>> renders = new ArrayList<>();
+                for (int i = 0; i < threadsCount; i++) {
+                    PdfDocument document = documents.get(i);
+                    int firstPage = i;
+                    renders.add(() -> renderPages(document, firstPage, threadsCount));
+                }
+                long startNanos = System.nanoTime();
+                for (Future<Void> render : executor.invokeAll(renders)) {
+                    render.get();
+                }
+                if (run >= WARM_UP_RUNS) {
+                    nanos += System.nanoTime() - startNanos;
+                }
+            }
+            return nanos;
+        } finally {
+            executor.shutdownNow();
+            for (PdfDocument document : documents) {
+                pdfiumCore.closeDocument(document);
+            }
+        }
+    }
+
+    /**
+     * Render every step-th page from the first one, like the workers share the queued parts
+     */
+    private Void renderPages(PdfDocument document, int firstPage, int step) {
+        int pagesCount = Math.min(PAGES_COUNT, pdfiumCore.getPageCount(document));
+        for (int page = firstPage; page < pagesCount; page += step) {
+            pdfiumCore.openPage(document, page);
+            Size pageSize = pdfiumCore.getPageSize(document, page);
+            int pageHeight = Math.round(PAGE_WIDTH * (float) pageSize.getHeight() / pageSize.getWidth());
+            Bitmap bitmap = Bitmap.createBitmap(PAGE_WIDTH, pageHeight, Bitmap.Config.ARGB_8888);
+            pdfiumCore.renderPageBitmap(document, bitmap, page, 0, 0, PAGE_WIDTH, pageHeight, false);
+            bitmap.recycle();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.infomaniak.lib.pdfview.source.FileSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The document of the sample app, added to the test assets
+ */
+final class SampleDocument {
+
+    private static final String FILE_NAME = "sample.pdf";
+
+    private SampleDocument() {
+    }
+
+    /**
+     * Copy the document to the cache directory, for pdfium to read it from a file like most apps do
+     */
+    static FileSource copy(Context context) throws IOException {
+        File file = new File(context.getCacheDir(), FILE_NAME);
+        Context testContext = InstrumentationRegistry.getInstrumentation().getContext();
+        try (InputStream input = testContext.getAssets().open(FILE_NAME);
+             OutputStream output = new FileOutputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        }
+        return new FileSource(file);
+    }
+}
@@ -93,13 +93,17 @@ class AnimationManager {
         stopAll();
         flinging = true;
         scroller.fling(startX, startY, velocityX, velocityY, minX, maxX, minY, maxY);
+        // The scroller already knows where the fling stops, render that first
+        pdfView.setFlingDestination(scroller.getFinalX(), scroller.getFinalY());
     }
 
     public void startPageFlingAnimation(float targetOffset) {
         if (pdfView.isSwipeVertical()) {
             startYAnimation(pdfView.getCurrentYOffset(), targetOffset);
+            pdfView.setFlingDestination(pdfView.getCurrentXOffset(), targetOffset);
         } else {
             startXAnimation(pdfView.getCurrentXOffset(), targetOffset);
+            pdfView.setFlingDestination(targetOffset, pdfView.getCurrentYOffset());
         }
         pageFlinging = true;
     }
@@ -112,6 +116,7 @@ class AnimationManager {
             }
         } else if (flinging) { // fling finished
             flinging = false;
+            pdfView.clearFlingDestination();
             pdfView.loadPages();
             hideHandle();
             pdfView.performPageSnap();
@@ -129,6 +134,7 @@ class AnimationManager {
     }
 
     public void stopAll() {
+        pdfView.clearFlingDestination();
         if (animation != null) {
             animation.cancel();
             animation = null;
@@ -137,6 +143,7 @@ class AnimationManager {
     }
 
     public void stopFling() {
+        pdfView.clearFlingDestination();
         flinging = false;
         scroller.forceFinished(true);
     }
@@ -162,6 +169,7 @@ class AnimationManager {
 
         @Override
         public void onAnimationCancel(Animator animation) {
+            pdfView.clearFlingDestination();
             pdfView.loadPages();
             pageFlinging = false;
             hideHandle();
@@ -169,6 +177,7 @@ class AnimationManager {
 
         @Override
         public void onAnimationEnd(Animator animation) {
+            pdfView.clearFlingDestination();
             pdfView.loadPages();
             pageFlinging = false;
             hideHandle();
@@ -186,6 +195,7 @@ class AnimationManager {
 
         @Override
         public void onAnimationCancel(Animator animation) {
+            pdfView.clearFlingDestination();
             pdfView.loadPages();
             pageFlinging = false;
             hideHandle();
@@ -193,6 +203,7 @@ class AnimationManager {
 
         @Override
         public void onAnimationEnd(Animator animation) {
+            pdfView.clearFlingDestination();
             pdfView.loadPages();
             pageFlinging = false;
             hideHandle();
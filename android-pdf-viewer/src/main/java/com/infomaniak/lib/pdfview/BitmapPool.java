@@ -0,0 +1,181 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of bitmaps no longer used by the cache, so that the rendering thread can draw into them instead of allocating
+ * new ones for every part. Bitmaps are grouped by size and config; almost all parts are squares of one of the few part
+ * sizes, so there are only a few groups. The pool is bounded in bytes, bitmaps that don't fit are recycled.
+ * <p>
+ * Thread safe: bitmaps are given back from the UI thread and taken from the rendering thread.
+ */
+class BitmapPool {
+
+    private final List<Group> groups = new ArrayList<>();
+
+    private long maxBytes;
+
+    private long pooledBytes;
+
+    private int hits;
+
+    private int misses;
+
+    BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Take a bitmap of this exact size and config out of the pool.
+     * If there is no exact match, a bigger bitmap of the same config is reconfigured, as long as it doesn't waste more
+     * than the memory asked for. This is what smaller parts at the page edges usually get.
+     *
+     * @return a mutable bitmap with undefined content, or null if none is available
+     */
+    @Nullable
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Group group = findGroup(width, height, config);
+        if (group != null && !group.bitmaps.isEmpty()) {
+            hits++;
+            return take(group);
+        }
+
+        long neededBytes = (long) width * height * bytesPerPixel(config);
+        for (int i = 0; i < groups.size(); i++) {
+            Group candidate = groups.get(i);
+            if (candidate.config != config || candidate.bitmaps.isEmpty()) {
+                continue;
+            }
+            int candidateBytes = candidate.bitmaps.peekLast().getAllocationByteCount();
+            if (candidateBytes >= neededBytes && candidateBytes <= neededBytes * 2) {
+                Bitmap bitmap = take(candidate);
+                try {
+                    bitmap.reconfigure(width, height, config);
+                    hits++;
+                    return bitmap;
+                } catch (IllegalArgumentException e) {
+                    bitmap.recycle();
+                }
+            }
+        }
+
+        misses++;
+        return null;
+    }
+
+    /**
+     * Give a bitmap back to the pool, or recycle it if the pool is full
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int bytes = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || pooledBytes + bytes > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        Group group = findGroup(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        if (group == null) {
+            group = new Group(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            groups.add(group);
+        }
+        group.bitmaps.addLast(bitmap);
+        pooledBytes += bytes;
+    }
+
+    /**
+     * Recycle pooled bitmaps until the pool uses at most the given bytes
+     */
+    synchronized void trimToSize(long bytes) {
+        for (int i = groups.size() - 1; i >= 0 && pooledBytes > bytes; i--) {
+            Group group = groups.get(i);
+            while (pooledBytes > bytes && !group.bitmaps.isEmpty()) {
+                take(group).recycle();
+            }
+        }
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    synchronized void clear() {
+        trimToSize(0);
+        groups.clear();
+    }
+
+    synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * @return the part of {@link #get} calls served from the pool, between 0 and 1
+     */
+    synchronized float getHitRate() {
+        int requests = hits + misses;
+        return requests == 0 ? 0 : hits / (float) requests;
+    }
+
+    private Bitmap take(Group group) {
+        Bitmap bitmap = group.bitmaps.pollLast();
+        pooledBytes -= bitmap.getAllocationByteCount();
+        if (group.bitmaps.isEmpty()) {
+            groups.remove(group);
+        }
+        return bitmap;
+    }
+
+    @Nullable
+    private Group findGroup(int width, int height, Bitmap.Config config) {
+        for (int i = 0; i < groups.size(); i++) {
+            Group group = groups.get(i);
+            if (group.width == width && group.height == height && group.config == config) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.ARGB_8888 ? 4 : 2;
+    }
+
+    private static final class Group {
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+        final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>();
+
+        Group(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+    }
+}
@@ -17,146 +17,709 @@
  */
 package com.infomaniak.lib.pdfview;
 
+import static com.infomaniak.lib.pdfview.util.Constants.Cache.BITMAP_POOL_FRACTION;
 import static com.infomaniak.lib.pdfview.util.Constants.Cache.CACHE_SIZE;
+import static com.infomaniak.lib.pdfview.util.Constants.Cache.MEMORY_CLASS_FRACTION;
+import static com.infomaniak.lib.pdfview.util.Constants.Cache.MIN_MEMORY_BUDGET;
+import static com.infomaniak.lib.pdfview.util.Constants.Cache.PRINTING_MEMORY_CLASS_FRACTION;
 import static com.infomaniak.lib.pdfview.util.Constants.Cache.THUMBNAILS_CACHE_SIZE;
+import static com.infomaniak.lib.pdfview.util.Constants.Cache.THUMBNAILS_MEMORY_FRACTION;
 
-import android.graphics.RectF;
-
-import androidx.annotation.Nullable;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.SparseArray;
 
 import com.infomaniak.lib.pdfview.model.PagePart;
+import com.infomaniak.lib.pdfview.model.TileKey;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
 
+/**
+ * Keeps rendered parts and thumbnails. Parts are indexed by their {@link TileKey} so that lookups are O(1) and don't
+ * allocate, and are linked in eviction order.
+ * <p>
+ * Parts wanted by the current {@link PagesLoader#loadPages()} pass are active, the others are passive. Every new set
+ * bumps the generation, which makes all parts passive at once, and a part becomes active again by moving to the tail of
+ * the eviction list. Passive parts are therefore always at the head of the list and are evicted first, oldest first.
+ * <p>
+ * The parts are bounded by the memory their bitmaps really use, not by their count, because the bitmap config and
+ * the size of the edge parts make it vary a lot from one document to another. Evicted bitmaps go to a
+ * {@link BitmapPool} that the rendering thread draws into, instead of being recycled right away.
+ * <p>
+ * Parts rendered at previous zoom levels stay in the cache as long as there's room, so that they can be displayed
+ * while the parts of the new zoom level are rendered: they are drawn from the coarsest to the sharpest level, and the
+ * passive parts entirely covered by sharper cached parts are evicted before the others. Then, the
+ * {@link EvictionPolicy} decides which passive part goes first.
+ * <p>
+ * Thumbnails have their own byte budget. When it's exceeded, the thumbnail of the page farthest from the current page
+ * goes first, the least recently used one between pages at the same distance. Pages rendered for printing are kept
+ * apart, in page order, within a printing budget.
+ */
 class CacheManager {
 
-    private final PriorityQueue<PagePart> passiveCache;
+    /**
+     * Orders parts from the coarsest to the sharpest level, so that sharper parts are drawn over the coarser ones
+     */
+    private static final Comparator<PagePart> LEVEL_COMPARATOR = (first, second) -> {
+        long firstKey = first.getKey();
+        long secondKey = second.getKey();
+        int compareHeights = Float.compare(renderedHeight(firstKey), renderedHeight(secondKey));
+        return compareHeights != 0 ? compareHeights : Float.compare(renderedWidth(firstKey), renderedWidth(secondKey));
+    };
+
+    /**
+     * Beyond this many lookups, a part isn't checked for being covered by sharper parts
+     */
+    private static final int MAX_COVERAGE_LOOKUPS = 64;
+
+    private final TileIndex<Node> parts;
 
-    private final PriorityQueue<PagePart> activeCache;
+    private final PartList evictionOrder;
+
+    /**
+     * Grids and part sizes of the cached parts, each one being a zoom level
+     */
+    private final Levels levels;
+
+    /**
+     * Cached parts in drawing order, rebuilt when the cached parts change
+     */
+    private final List<PagePart> drawOrder;
+
+    private boolean drawOrderChanged;
+
+    /**
+     * Generation of the current set, parts having it are active
+     */
+    private int generation;
+
+    /**
+     * Maximum bytes used by the bitmaps of the parts
+     */
+    private long maxBytes;
+
+    /**
+     * Bytes currently used by the bitmaps of the parts
+     */
+    private long cachedBytes;
+
+    private final BitmapPool ownBitmapPool;
+
+    /**
+     * The own pool, or the one of the {@link SharedRenderCache} this cache is part of
+     */
+    private volatile BitmapPool bitmapPool;
 
     private final List<PagePart> thumbnails;
 
-    private final Object passiveActiveLock = new Object();
+    private final TileIndex<PagePart> thumbnailIndex;
 
-    private final PagePartComparator orderComparator = new PagePartComparator();
+    private long thumbnailsMaxBytes;
 
-    public CacheManager() {
-        activeCache = new PriorityQueue<>(CACHE_SIZE, orderComparator);
-        passiveCache = new PriorityQueue<>(CACHE_SIZE, orderComparator);
-        thumbnails = new ArrayList<>();
-    }
+    private long thumbnailsBytes;
 
-    @Nullable
-    private static PagePart find(PriorityQueue<PagePart> vector, PagePart fakePart) {
-        for (PagePart part : vector) {
-            if (part.equals(fakePart)) {
-                return part;
-            }
-        }
-        return null;
+    /**
+     * Incremented on every thumbnail use, and stored as its cache order to know the least recently used one
+     */
+    private int thumbnailsClock;
+
+    /**
+     * Pages rendered for printing, by page index
+     */
+    private final SparseArray<PagePart> printPages;
+
+    private final long printingMaxBytes;
+
+    private long printPagesBytes;
+
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+    private Viewport viewport;
+
+    private final Object passiveActiveLock = new Object();
+
+    public CacheManager(long maxBytes, long printingMaxBytes) {
+        this.maxBytes = maxBytes;
+        this.printingMaxBytes = printingMaxBytes;
+        ownBitmapPool = new BitmapPool(poolMaxBytes(maxBytes));
+        bitmapPool = ownBitmapPool;
+        parts = new TileIndex<>(CACHE_SIZE);
+        evictionOrder = new PartList();
+        levels = new Levels();
+        drawOrder = new ArrayList<>(CACHE_SIZE);
+        thumbnails = new ArrayList<>();
+        thumbnailIndex = new TileIndex<>(THUMBNAILS_CACHE_SIZE);
+        thumbnailsMaxBytes = thumbnailsMaxBytes(maxBytes);
+        printPages = new SparseArray<>();
     }
 
     public void cachePart(PagePart part) {
         synchronized (passiveActiveLock) {
+            Node existing = parts.get(part.getKey());
+            if (existing != null && existing.part.isPreview() && !part.isPreview()) {
+                // The sharp part replaces its preview
+                recycleBitmapsFromPart(existing);
+            } else if (existing != null) {
+                // Rendered twice, keep the part we already have
+                bitmapPool.put(part.getRenderedBitmap());
+                moveToActive(existing, part.getCacheOrder());
+                return;
+            }
+
             // If cache too big, remove and recycle
-            makeAFreeSpace();
+            int bytes = part.getRenderedBitmap().getAllocationByteCount();
+            makeAFreeSpace(bytes);
 
             // Then add part
-            activeCache.offer(part);
+            Node node = new Node(part, bytes);
+            parts.put(part.getKey(), node);
+            cachedBytes += bytes;
+            levels.add(part.getKey());
+            drawOrderChanged = true;
+            moveToActive(node, part.getCacheOrder());
         }
     }
 
     public void makeANewSet() {
         synchronized (passiveActiveLock) {
-            passiveCache.addAll(activeCache);
-            activeCache.clear();
+            generation++;
         }
     }
 
-    private void makeAFreeSpace() {
+    private void makeAFreeSpace(long neededBytes) {
         synchronized (passiveActiveLock) {
-            while ((activeCache.size() + passiveCache.size()) >= CACHE_SIZE && !passiveCache.isEmpty()) {
-                recycleBitmapsFromPart(passiveCache);
+            // Passive parts hidden by sharper ones are of no use
+            Node node = evictionOrder.first();
+            while (cachedBytes + neededBytes > maxBytes && node != null && node.generation != generation) {
+                Node next = node.next;
+                if (isCoveredBySharperParts(node.part.getKey())) {
+                    recycleBitmapsFromPart(node);
+                }
+                node = next;
+            }
+
+            // Passive parts come first in the eviction order
+            while (cachedBytes + neededBytes > maxBytes && !evictionOrder.isEmpty()) {
+                recycleBitmapsFromPart(findPartToEvict());
+            }
+        }
+    }
+
+    /**
+     * @return the passive part with the lowest score, or the least recently used part if they're all active
+     */
+    private Node findPartToEvict() {
+        Node first = evictionOrder.first();
+        if (evictionPolicy == EvictionPolicy.LRU || viewport == null) {
+            return first;
+        }
+        Node partToEvict = first;
+        float lowestScore = Float.MAX_VALUE;
+        for (Node node = first; node != null && node.generation != generation; node = node.next) {
+            float score = evictionPolicy.getScore(node.part, viewport);
+            if (score < lowestScore) {
+                partToEvict = node;
+                lowestScore = score;
+            }
+        }
+        return partToEvict;
+    }
+
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy, Viewport viewport) {
+        synchronized (passiveActiveLock) {
+            this.evictionPolicy = evictionPolicy;
+            this.viewport = viewport;
+        }
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        synchronized (passiveActiveLock) {
+            return evictionPolicy;
+        }
+    }
+
+    /**
+     * Return true if every point of the part is also in a cached part of a sharper level
+     */
+    private boolean isCoveredBySharperParts(long key) {
+        int page = TileKey.page(key);
+        int rows = TileKey.rows(key);
+        int cols = TileKey.cols(key);
+        int row = TileKey.row(key);
+        int col = TileKey.col(key);
+        float height = renderedHeight(key);
+        float width = renderedWidth(key);
+        for (int i = 0; i < levels.size(); i++) {
+            long level = levels.get(i);
+            int levelRows = TileKey.rows(level);
+            int levelCols = TileKey.cols(level);
+            float levelHeight = renderedHeight(level);
+            float levelWidth = renderedWidth(level);
+            if (levelHeight < height || levelWidth < width || (levelHeight == height && levelWidth == width)) {
+                continue;
+            }
+            // Parts of this level that intersect the part
+            int firstRow = row * levelRows / rows;
+            int lastRow = ((row + 1) * levelRows - 1) / rows;
+            int firstCol = col * levelCols / cols;
+            int lastCol = ((col + 1) * levelCols - 1) / cols;
+            if ((lastRow - firstRow + 1) * (lastCol - firstCol + 1) > MAX_COVERAGE_LOOKUPS) {
+                continue;
             }
+            if (isLevelCached(page, TileKey.sizeLevel(level), levelRows, levelCols, firstRow, lastRow, firstCol,
+                    lastCol)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            while ((activeCache.size() + passiveCache.size()) >= CACHE_SIZE && !activeCache.isEmpty()) {
-                recycleBitmapsFromPart(activeCache);
+    private boolean isLevelCached(int page, int sizeLevel, int rows, int cols, int firstRow, int lastRow,
+                                  int firstCol, int lastCol) {
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                if (!parts.contains(TileKey.of(page, sizeLevel, rows, cols, row, col))) {
+                    return false;
+                }
             }
         }
+        return true;
     }
 
-    public void cacheThumbnail(PagePart part, boolean isForPrinting) {
+    /**
+     * @return height, in pixels, of the page at the zoom level of the part, which tells how sharp the part is
+     */
+    private static float renderedHeight(long key) {
+        return TileKey.rows(key) * PartSizeManager.getSize(TileKey.sizeLevel(key));
+    }
+
+    private static float renderedWidth(long key) {
+        return TileKey.cols(key) * PartSizeManager.getSize(TileKey.sizeLevel(key));
+    }
+
+    /**
+     * Change the memory budget of the parts, evicting the oldest ones if it's now exceeded.
+     * The thumbnails and bitmap pool budgets follow.
+     *
+     * @param maxBytes maximum bytes used by the bitmaps of the parts
+     */
+    public void setMaxBytes(long maxBytes) {
+        synchronized (passiveActiveLock) {
+            this.maxBytes = maxBytes;
+            makeAFreeSpace(0);
+        }
         synchronized (thumbnails) {
-            // If cache too big, remove and recycle. But if we're printing, we don't want any limit.
-            while (!isForPrinting && thumbnails.size() >= THUMBNAILS_CACHE_SIZE) {
-                thumbnails.remove(0).getRenderedBitmap().recycle();
+            thumbnailsMaxBytes = thumbnailsMaxBytes(maxBytes);
+            while (thumbnailsBytes > thumbnailsMaxBytes && !thumbnails.isEmpty()) {
+                removeThumbnailAt(findLeastWantedThumbnail(-1));
             }
+        }
+        ownBitmapPool.setMaxBytes(poolMaxBytes(maxBytes));
+    }
 
-            // Then add thumbnail
-            addWithoutDuplicates(thumbnails, part);
+    public long getMaxBytes() {
+        synchronized (passiveActiveLock) {
+            return maxBytes;
         }
     }
 
-    public boolean upPartIfContained(int page, RectF pageRelativeBounds, int toOrder) {
-        PagePart fakePart = new PagePart(page, null, pageRelativeBounds, false, 0);
+    public long getCachedBytes() {
+        synchronized (passiveActiveLock) {
+            return cachedBytes;
+        }
+    }
 
-        PagePart found;
+    /**
+     * @return how many full size parts fit in the memory budget
+     */
+    public int getMaxPartsCount(float partSize, boolean bestQuality) {
+        int bytesPerPixel = bestQuality ? 4 : 2;
+        long partBytes = (long) (partSize * partSize) * bytesPerPixel;
         synchronized (passiveActiveLock) {
-            if ((found = find(passiveCache, fakePart)) != null) {
-                passiveCache.remove(found);
-                found.setCacheOrder(toOrder);
-                activeCache.offer(found);
+            return (int) Math.max(1, maxBytes / partBytes);
+        }
+    }
+
+    BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Use the pool of a {@link SharedRenderCache} instead of the own one, or the own one again if null
+     */
+    void setSharedBitmapPool(BitmapPool sharedBitmapPool) {
+        if (sharedBitmapPool != null) {
+            bitmapPool = sharedBitmapPool;
+            ownBitmapPool.clear();
+        } else {
+            bitmapPool = ownBitmapPool;
+        }
+    }
+
+    private static long poolMaxBytes(long maxBytes) {
+        return (long) (maxBytes * BITMAP_POOL_FRACTION);
+    }
+
+    private static long thumbnailsMaxBytes(long maxBytes) {
+        return (long) (maxBytes * THUMBNAILS_MEMORY_FRACTION);
+    }
+
+    /**
+     * Default memory budget of the parts: a fraction of the memory class of the app, see
+     * {@link ActivityManager#getMemoryClass()}
+     */
+    static long defaultMaxBytes(Context context) {
+        return Math.max(MIN_MEMORY_BUDGET, (long) (memoryClassBytes(context) * MEMORY_CLASS_FRACTION));
+    }
+
+    /**
+     * Default memory budget of the pages rendered for printing: a fraction of the memory class of the app
+     */
+    static long defaultPrintingMaxBytes(Context context) {
+        return Math.max(MIN_MEMORY_BUDGET, (long) (memoryClassBytes(context) * PRINTING_MEMORY_CLASS_FRACTION));
+    }
+
+    private static long memoryClassBytes(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager == null) {
+            return 0;
+        }
+        return activityManager.getMemoryClass() * 1024L * 1024L;
+    }
+
+    /**
+     * Cache a thumbnail, evicting the ones of the pages farthest from the current page if the budget is exceeded.
+     * The new thumbnail is dropped if it's the farthest one.
+     *
+     * @param currentPage page the user is looking at
+     */
+    public void cacheThumbnail(PagePart part, int currentPage) {
+        synchronized (thumbnails) {
+            if (thumbnailIndex.contains(part.getKey())) {
+                bitmapPool.put(part.getRenderedBitmap());
+                return;
+            }
+
+            // If cache too big, give the least wanted thumbnails back to the pool
+            int bytes = part.getRenderedBitmap().getAllocationByteCount();
+            int newDistance = Math.abs(part.getPage() - currentPage);
+            while (thumbnailsBytes + bytes > thumbnailsMaxBytes && !thumbnails.isEmpty()) {
+                int leastWanted = findLeastWantedThumbnail(currentPage);
+                if (Math.abs(thumbnails.get(leastWanted).getPage() - currentPage) < newDistance) {
+                    bitmapPool.put(part.getRenderedBitmap());
+                    return;
+                }
+                removeThumbnailAt(leastWanted);
+            }
+
+            // Then add thumbnail
+            part.setCacheOrder(++thumbnailsClock);
+            thumbnailIndex.put(part.getKey(), part);
+            thumbnails.add(part);
+            thumbnailsBytes += bytes;
+        }
+    }
+
+    /**
+     * @param currentPage page the user is looking at, or -1 to only consider how recently thumbnails were used
+     * @return index in {@link #thumbnails} of the thumbnail to evict first
+     */
+    private int findLeastWantedThumbnail(int currentPage) {
+        int leastWanted = 0;
+        int maxDistance = -1;
+        int oldestUse = Integer.MAX_VALUE;
+        for (int i = 0; i < thumbnails.size(); i++) {
+            PagePart thumbnail = thumbnails.get(i);
+            int distance = currentPage < 0 ? 0 : Math.abs(thumbnail.getPage() - currentPage);
+            if (distance > maxDistance || (distance == maxDistance && thumbnail.getCacheOrder() < oldestUse)) {
+                leastWanted = i;
+                maxDistance = distance;
+                oldestUse = thumbnail.getCacheOrder();
+            }
+        }
+        return leastWanted;
+    }
+
+    private void removeThumbnailAt(int index) {
+        bitmapPool.put(unlinkThumbnailAt(index).getRenderedBitmap());
+    }
+
+    /**
+     * Remove without keeping the list order, which doesn't matter for drawing
+     */
+    private PagePart unlinkThumbnailAt(int index) {
+        int last = thumbnails.size() - 1;
+        PagePart removed = thumbnails.get(index);
+        thumbnails.set(index, thumbnails.get(last));
+        thumbnails.remove(last);
+        thumbnailIndex.remove(removed.getKey());
+        thumbnailsBytes -= removed.getRenderedBitmap().getAllocationByteCount();
+        return removed;
+    }
+
+    /**
+     * Keep a page rendered for printing. Its bitmap is handed to the app, so it never goes to the bitmap pool.
+     *
+     * @return false if the printing budget is exceeded and the page was dropped
+     */
+    public boolean cachePrintPage(PagePart part) {
+        synchronized (printPages) {
+            if (printPages.get(part.getPage()) != null) {
+                part.getRenderedBitmap().recycle();
                 return true;
             }
+            int bytes = part.getRenderedBitmap().getAllocationByteCount();
+            if (printPagesBytes + bytes > printingMaxBytes) {
+                part.getRenderedBitmap().recycle();
+                return false;
+            }
+            printPages.put(part.getPage(), part);
+            printPagesBytes += bytes;
+            return true;
+        }
+    }
 
-            return find(activeCache, fakePart) != null;
+    /**
+     * Return true if the given page was rendered for printing and the app hasn't recycled its bitmap since
+     */
+    public boolean containsPrintPage(int page) {
+        synchronized (printPages) {
+            PagePart printPage = printPages.get(page);
+            if (printPage != null && printPage.getRenderedBitmap().isRecycled()) {
+                // The app is done with the previous printing, the pages have to be rendered again
+                clearPrintPages();
+                return false;
+            }
+            return printPage != null;
+        }
+    }
+
+    public int getPrintPagesCount() {
+        synchronized (printPages) {
+            return printPages.size();
+        }
+    }
+
+    public long getPrintingMaxBytes() {
+        return printingMaxBytes;
+    }
+
+    /**
+     * @return bitmaps of the pages rendered for printing, in page order
+     */
+    public List<Bitmap> getPrintBitmaps() {
+        synchronized (printPages) {
+            List<Bitmap> bitmaps = new ArrayList<>(printPages.size());
+            for (int i = 0; i < printPages.size(); i++) {
+                bitmaps.add(printPages.valueAt(i).getRenderedBitmap());
+            }
+            return bitmaps;
+        }
+    }
+
+    /**
+     * Forget the pages rendered for printing. Their bitmaps aren't recycled since the app may still use them.
+     */
+    public void clearPrintPages() {
+        synchronized (printPages) {
+            printPages.clear();
+            printPagesBytes = 0;
+        }
+    }
+
+    /**
+     * Move the described part to the active set if it's cached.
+     *
+     * @return true if the part is cached, not only as a preview
+     */
+    public boolean upPartIfContained(long key, int toOrder) {
+        return upPartIfContained(key, toOrder, false);
+    }
+
+    /**
+     * Move the described part to the active set if it's cached, even as a preview.
+     *
+     * @param preview true if a preview of the part is enough
+     * @return true if the part is cached, as a preview only if that's enough
+     */
+    public boolean upPartIfContained(long key, int toOrder, boolean preview) {
+        synchronized (passiveActiveLock) {
+            Node found = parts.get(key);
+            if (found == null) {
+                return false;
+            }
+            if (found.generation != generation) {
+                moveToActive(found, toOrder);
+            }
+            return preview || !found.part.isPreview();
         }
     }
 
     /**
-     * Return true if already contains the described PagePart
+     * Return true if already contains the thumbnail of the given page, which then counts as recently used
      */
-    public boolean containsThumbnail(int page, RectF pageRelativeBounds) {
-        PagePart fakePart = new PagePart(page, null, pageRelativeBounds, true, 0);
+    public boolean containsThumbnail(int page) {
         synchronized (thumbnails) {
-            for (PagePart part : thumbnails) {
-                if (part.equals(fakePart)) {
-                    return true;
+            PagePart thumbnail = thumbnailIndex.get(TileKey.thumbnail(page));
+            if (thumbnail == null) {
+                return false;
+            }
+            thumbnail.setCacheOrder(++thumbnailsClock);
+            return true;
+        }
+    }
+
+    private void moveToActive(Node node, int toOrder) {
+        if (node.linked) {
+            evictionOrder.unlink(node);
+        }
+        node.generation = generation;
+        node.part.setCacheOrder(toOrder);
+        evictionOrder.addLast(node);
+    }
+
+    private void recycleBitmapsFromPart(Node node) {
+        removePart(node);
+        bitmapPool.put(node.part.getRenderedBitmap());
+    }
+
+    private void removePart(Node node) {
+        long key = node.part.getKey();
+        evictionOrder.unlink(node);
+        parts.remove(key);
+        levels.remove(key);
+        drawOrderChanged = true;
+        cachedBytes -= node.bytes;
+    }
+
+    /**
+     * Recycle the parts the current view doesn't need, without going through the bitmap pool
+     *
+     * @return bytes released
+     */
+    public long dropPassiveParts() {
+        synchronized (passiveActiveLock) {
+            long droppedBytes = 0;
+            Node node = evictionOrder.first();
+            while (node != null && node.generation != generation) {
+                Node next = node.next;
+                removePart(node);
+                node.part.getRenderedBitmap().recycle();
+                droppedBytes += node.bytes;
+                node = next;
+            }
+            return droppedBytes;
+        }
+    }
+
+    /**
+     * Recycle the parts out of the viewport, active ones included, without going through the bitmap pool
+     *
+     * @return bytes released
+     */
+    public long dropInvisibleParts(Viewport viewport) {
+        synchronized (passiveActiveLock) {
+            long droppedBytes = 0;
+            Node node = evictionOrder.first();
+            while (node != null) {
+                Node next = node.next;
+                if (viewport.getDistance(node.part) > 0) {
+                    removePart(node);
+                    node.part.getRenderedBitmap().recycle();
+                    droppedBytes += node.bytes;
                 }
+                node = next;
             }
-            return false;
+            return droppedBytes;
         }
     }
 
-    private void recycleBitmapsFromPart(PriorityQueue<PagePart> cache) {
-        PagePart part = cache.poll();
-        if (part != null) {
-            part.getRenderedBitmap().recycle();
+    /**
+     * Recycle the thumbnails of the pages out of the viewport, without going through the bitmap pool
+     *
+     * @return bytes released
+     */
+    public long dropInvisibleThumbnails(Viewport viewport) {
+        synchronized (thumbnails) {
+            long droppedBytes = 0;
+            for (int i = thumbnails.size() - 1; i >= 0; i--) {
+                PagePart thumbnail = thumbnails.get(i);
+                if (viewport.getDistance(thumbnail) > 0) {
+                    droppedBytes += thumbnail.getRenderedBitmap().getAllocationByteCount();
+                    unlinkThumbnailAt(i).getRenderedBitmap().recycle();
+                }
+            }
+            return droppedBytes;
         }
     }
 
     /**
-     * Add part if it doesn't exist, recycle bitmap otherwise
+     * Drop the parts and the thumbnail of a page, for example after its size changed. Their bitmaps go to the pool.
      */
-    private void addWithoutDuplicates(Collection<PagePart> collection, PagePart newPart) {
-        for (PagePart part : collection) {
-            if (part.equals(newPart)) {
-                newPart.getRenderedBitmap().recycle();
-                return;
+    public void dropPageParts(int page) {
+        synchronized (passiveActiveLock) {
+            Node node = evictionOrder.first();
+            while (node != null) {
+                Node next = node.next;
+                if (node.part.getPage() == page) {
+                    recycleBitmapsFromPart(node);
+                }
+                node = next;
+            }
+        }
+        synchronized (thumbnails) {
+            for (int i = thumbnails.size() - 1; i >= 0; i--) {
+                if (thumbnails.get(i).getPage() == page) {
+                    removeThumbnailAt(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the parts of a page rendered with this part size, for example after the part size of the page changed.
+     * Their bitmaps go to the pool.
+     */
+    public void dropPageParts(int page, int sizeLevel) {
+        synchronized (passiveActiveLock) {
+            Node node = evictionOrder.first();
+            while (node != null) {
+                Node next = node.next;
+                if (node.part.getPage() == page && TileKey.sizeLevel(node.part.getKey()) == sizeLevel) {
+                    recycleBitmapsFromPart(node);
+                }
+                node = next;
             }
         }
-        collection.add(newPart);
     }
 
+    /**
+     * @return the cached parts in drawing order, from the coarsest to the sharpest level
+     */
     public List<PagePart> getPageParts() {
+        List<PagePart> result = new ArrayList<>(parts.size());
+        getPageParts(result);
+        return result;
+    }
+
+    /**
+     * Replace the content of the given list by the cached parts, in drawing order. Doesn't allocate once the list has
+     * grown big enough, so that it can be called on every frame.
+     */
+    public void getPageParts(List<PagePart> result) {
         synchronized (passiveActiveLock) {
-            List<PagePart> parts = new ArrayList<>(passiveCache);
-            parts.addAll(activeCache);
-            return parts;
+            if (drawOrderChanged) {
+                drawOrder.clear();
+                evictionOrder.addPartsTo(drawOrder);
+                Collections.sort(drawOrder, LEVEL_COMPARATOR);
+                drawOrderChanged = false;
+            }
+            copy(drawOrder, result);
         }
     }
 
@@ -166,32 +729,186 @@ class CacheManager {
         }
     }
 
+    /**
+     * Replace the content of the given list by the cached thumbnails, without allocating once it has grown big enough
+     */
+    public void getThumbnails(List<PagePart> result) {
+        synchronized (thumbnails) {
+            copy(thumbnails, result);
+        }
+    }
+
+    /**
+     * Unlike {@link List#addAll}, doesn't allocate an intermediate array
+     */
+    private static void copy(List<PagePart> source, List<PagePart> destination) {
+        destination.clear();
+        for (int i = 0; i < source.size(); i++) {
+            destination.add(source.get(i));
+        }
+    }
+
+    /**
+     * Drop all the parts and thumbnails. When the bitmap pool is shared, their bitmaps go to it for the other views.
+     */
     public void recycle() {
         synchronized (passiveActiveLock) {
-            for (PagePart part : passiveCache) {
-                part.getRenderedBitmap().recycle();
-            }
-            passiveCache.clear();
-            for (PagePart part : activeCache) {
-                part.getRenderedBitmap().recycle();
+            for (Node node = evictionOrder.first(); node != null; node = node.next) {
+                releaseBitmap(node.part.getRenderedBitmap());
             }
-            activeCache.clear();
+            evictionOrder.clear();
+            parts.clear();
+            levels.clear();
+            drawOrder.clear();
+            drawOrderChanged = false;
+            cachedBytes = 0;
         }
         synchronized (thumbnails) {
             for (PagePart part : thumbnails) {
-                part.getRenderedBitmap().recycle();
+                releaseBitmap(part.getRenderedBitmap());
             }
             thumbnails.clear();
+            thumbnailIndex.clear();
+            thumbnailsBytes = 0;
+        }
+        clearPrintPages();
+        ownBitmapPool.clear();
+    }
+
+    private void releaseBitmap(Bitmap bitmap) {
+        if (bitmapPool == ownBitmapPool) {
+            bitmap.recycle();
+        } else {
+            bitmapPool.put(bitmap);
+        }
+    }
+
+    private static final class Node {
+        final PagePart part;
+        final int bytes;
+        int generation;
+        boolean linked;
+        Node prev;
+        Node next;
+
+        Node(PagePart part, int bytes) {
+            this.part = part;
+            this.bytes = bytes;
         }
     }
 
-    class PagePartComparator implements Comparator<PagePart> {
-        @Override
-        public int compare(PagePart part1, PagePart part2) {
-            if (part1.getCacheOrder() == part2.getCacheOrder()) {
-                return 0;
+    /**
+     * Distinct grids and part sizes of the cached parts, with the number of parts using each one. There are only a
+     * few, one per zoom level the user went through and per page size.
+     */
+    private static final class Levels {
+        private long[] levels = new long[8];
+        private int[] counts = new int[8];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return the key of the first part of the level, its page, row and col are 0
+         */
+        long get(int index) {
+            return levels[index];
+        }
+
+        void add(long key) {
+            long level = levelOf(key);
+            for (int i = 0; i < size; i++) {
+                if (levels[i] == level) {
+                    counts[i]++;
+                    return;
+                }
             }
-            return part1.getCacheOrder() > part2.getCacheOrder() ? 1 : -1;
+            if (size == levels.length) {
+                levels = Arrays.copyOf(levels, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            levels[size] = level;
+            counts[size] = 1;
+            size++;
+        }
+
+        void remove(long key) {
+            long level = levelOf(key);
+            for (int i = 0; i < size; i++) {
+                if (levels[i] == level) {
+                    if (--counts[i] == 0) {
+                        size--;
+                        levels[i] = levels[size];
+                        counts[i] = counts[size];
+                    }
+                    return;
+                }
+            }
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        private static long levelOf(long key) {
+            return TileKey.of(0, TileKey.sizeLevel(key), TileKey.rows(key), TileKey.cols(key), 0, 0);
+        }
+    }
+
+    /**
+     * Intrusive doubly linked list of cached parts, in eviction order (head is evicted first).
+     */
+    private static final class PartList {
+        private Node head;
+        private Node tail;
+
+        boolean isEmpty() {
+            return head == null;
+        }
+
+        Node first() {
+            return head;
+        }
+
+        void addLast(Node node) {
+            node.linked = true;
+            node.next = null;
+            node.prev = tail;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+        }
+
+        void unlink(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.linked = false;
+        }
+
+        void addPartsTo(List<PagePart> result) {
+            for (Node node = head; node != null; node = node.next) {
+                result.add(node.part);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
         }
     }
 }
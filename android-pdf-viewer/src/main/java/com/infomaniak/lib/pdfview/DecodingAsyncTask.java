@@ -20,11 +20,13 @@ import android.os.AsyncTask;
 
 import com.infomaniak.lib.pdfview.source.DocumentSource;
 import com.infomaniak.lib.pdfview.util.FitPolicy;
+import com.infomaniak.lib.pdfview.util.Util;
 import com.shockwave.pdfium.PdfDocument;
 import com.shockwave.pdfium.PdfiumCore;
 import com.shockwave.pdfium.util.Size;
 
 import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
 
 class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
 
@@ -40,6 +42,10 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
     private boolean isSwipeVertical;
     private boolean isFitEachPage;
     private FitPolicy pageFitPolicy;
+    private boolean lazyPageSizes;
+    private boolean diskCache;
+    private LayoutCache layoutCache;
+    private int firstPage;
 
     private PdfiumCore pdfiumCore;
     private String password;
@@ -64,6 +70,10 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
         isSwipeVertical = pdfView.isSwipeVertical();
         isFitEachPage = pdfView.isFitEachPage();
         pageFitPolicy = pdfView.getPageFitPolicy();
+        lazyPageSizes = pdfView.isLazyPageSizes();
+        firstPage = pdfView.getDefaultPage();
+        diskCache = pdfView.diskTileCache != null;
+        layoutCache = pdfView.layoutCache;
     }
 
     @Override
@@ -72,6 +82,11 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
             PDFView pdfView = pdfViewReference.get();
             if (pdfView != null) {
                 PdfDocument pdfDocument = docSource.createDocument(contextReference.get(), pdfiumCore, password);
+                String fingerprint = getFingerprint();
+                int[] cachedPageSizes = null;
+                if (layoutCache != null && fingerprint != null) {
+                    cachedPageSizes = layoutCache.read(fingerprint, pdfiumCore.getPageCount(pdfDocument));
+                }
                 PDFSpacing pdfSpacing = new PDFSpacing(
                         pageSeparatorSpacing,
                         startSpacing,
@@ -89,8 +104,16 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
                         pdfiumCore,
                         pdfDocument,
                         userPages,
-                        displayOptions
+                        displayOptions,
+                        fingerprint,
+                        cachedPageSizes,
+                        lazyPageSizes,
+                        firstPage
                 );
+                if (layoutCache != null && cachedPageSizes == null && pdfFile.isLayoutCacheable()
+                        && !pdfFile.hasEstimatedPageSizes()) {
+                    layoutCache.write(fingerprint, pdfFile.getOriginalPageSizes());
+                }
                 return null;
             } else {
                 return new NullPointerException("pdfView == null");
@@ -101,6 +124,17 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
         }
     }
 
+    /**
+     * @return null if no cache needs the fingerprint, computing it may mean hashing the whole document
+     */
+    private String getFingerprint() {
+        if (!diskCache && layoutCache == null) {
+            return null;
+        }
+        String fingerprint = docSource.getFingerprint();
+        return fingerprint == null ? null : Util.sha256Hex(fingerprint.getBytes(StandardCharsets.UTF_8));
+    }
+
     private Size getViewSize(PDFView pdfView) {
         return new Size(pdfView.getWidth(), pdfView.getHeight());
     }
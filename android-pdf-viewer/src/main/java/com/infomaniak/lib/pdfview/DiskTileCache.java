@@ -0,0 +1,270 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static com.infomaniak.lib.pdfview.util.Constants.Cache.DISK_CACHE_SIZE;
+import static com.infomaniak.lib.pdfview.util.Constants.Cache.DISK_CACHE_WRITE_QUEUE_SIZE;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Second level cache of the rendered parts, on disk under {@link Context#getCacheDir()}, so that a document viewed
+ * again after a rotation or in a later session doesn't go through pdfium again.
+ * <p>
+ * Each document has its own directory, named after its fingerprint. A part file is named after the page and the
+ * geometry it was rendered with, which covers the zoom level and the position in the page grid. It holds the raw
+ * pixels, deflated. The cache is shared by all the {@link PDFView}s of the process and bounded in bytes, the least
+ * recently used parts are deleted first.
+ * <p>
+ * Parts are read from the rendering threads, each with its own read buffer. Writes are done on a dedicated thread,
+ * never on the UI thread. At most {@code DISK_CACHE_WRITE_QUEUE_SIZE} parts wait to be written, the parts rendered
+ * while the writer is behind aren't saved, so that their pixels aren't copied in memory for nothing.
+ */
+final class DiskTileCache {
+
+    private static final String TAG = DiskTileCache.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "pdfview-parts";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int FILE_MAGIC = 0x50444650;
+
+    private static DiskTileCache instance;
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    /**
+     * Relative path to file size, in access order
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long cachedBytes;
+
+    private boolean indexed;
+
+    private final ThreadPoolExecutor writer = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(DISK_CACHE_WRITE_QUEUE_SIZE),
+            runnable -> new Thread(runnable, "PDF disk cache writer"),
+            new ThreadPoolExecutor.DiscardPolicy()
+    );
+
+    private final ThreadLocal<byte[]> readBuffers = new ThreadLocal<>();
+
+    private DiskTileCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    static synchronized DiskTileCache getInstance(Context context) {
+        if (instance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+            instance = new DiskTileCache(directory, DISK_CACHE_SIZE);
+        }
+        return instance;
+    }
+
+    /**
+     * @param documentPage page in the document, not in the user pages
+     * @param renderBounds position and size of the whole page in the rendered bitmap
+     */
+    static String partName(int documentPage, Rect renderBounds, int width, int height, Bitmap.Config config,
+                           boolean annotationRendering) {
+        return documentPage
+                + "_" + renderBounds.left + "_" + renderBounds.top
+                + "_" + renderBounds.width() + "x" + renderBounds.height()
+                + "_" + width + "x" + height
+                + "_" + config.ordinal() + (annotationRendering ? "a" : "");
+    }
+
+    /**
+     * Fill the bitmap with the cached part, if any.
+     * The bitmap must already have the size and config the part was saved with.
+     *
+     * @return true if the part was found
+     */
+    boolean load(String documentKey, String partName, Bitmap bitmap) {
+        String path = documentKey + File.separator + partName;
+        synchronized (this) {
+            ensureIndexed();
+            if (entries.get(path) == null) {
+                return false;
+            }
+        }
+
+        File file = new File(directory, path);
+        int byteCount = bitmap.getByteCount();
+        try (DataInputStream input = new DataInputStream(new InflaterInputStream(
+                new BufferedInputStream(new FileInputStream(file))))) {
+            if (input.readInt() != FILE_MAGIC
+                    || input.readInt() != bitmap.getWidth()
+                    || input.readInt() != bitmap.getHeight()
+                    || input.readInt() != bitmap.getConfig().ordinal()) {
+                remove(path);
+                return false;
+            }
+            byte[] readBuffer = readBuffers.get();
+            if (readBuffer == null || readBuffer.length < byteCount) {
+                readBuffer = new byte[byteCount];
+                readBuffers.set(readBuffer);
+            }
+            input.readFully(readBuffer, 0, byteCount);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(readBuffer, 0, byteCount));
+        } catch (IOException | RuntimeException e) {
+            // A truncated or corrupted file, or pixels which don't fit the bitmap
+            remove(path);
+            return false;
+        }
+        // Keep the access order across sessions
+        file.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Copy the pixels of the bitmap and write them to disk later, so that the bitmap can be used right away. Nothing is
+     * saved if too many parts already wait to be written.
+     */
+    void save(String documentKey, String partName, Bitmap bitmap) {
+        if (writer.getQueue().remainingCapacity() == 0) {
+            return;
+        }
+        byte[] pixels = new byte[bitmap.getByteCount()];
+        bitmap.copyPixelsToBuffer(ByteBuffer.wrap(pixels));
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int config = bitmap.getConfig().ordinal();
+        writer.execute(() -> write(documentKey, partName, width, height, config, pixels));
+    }
+
+    private void write(String documentKey, String partName, int width, int height, int config, byte[] pixels) {
+        String path = documentKey + File.separator + partName;
+        File file = new File(directory, path);
+        File tempFile = new File(directory, path + TEMP_SUFFIX);
+        File documentDirectory = file.getParentFile();
+        if (documentDirectory == null || (!documentDirectory.isDirectory() && !documentDirectory.mkdirs())) {
+            return;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream output = new DataOutputStream(new DeflaterOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)), deflater))) {
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(width);
+            output.writeInt(height);
+            output.writeInt(config);
+            output.write(pixels);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write part " + path, e);
+            tempFile.delete();
+            return;
+        } finally {
+            deflater.end();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            ensureIndexed();
+            Long previousBytes = entries.put(path, file.length());
+            cachedBytes += file.length() - (previousBytes == null ? 0 : previousBytes);
+            trimToSize(maxBytes);
+        }
+    }
+
+    private synchronized void remove(String path) {
+        Long bytes = entries.remove(path);
+        if (bytes != null) {
+            cachedBytes -= bytes;
+        }
+        new File(directory, path).delete();
+    }
+
+    private void trimToSize(long bytes) {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (cachedBytes > bytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(directory, eldest.getKey()).delete();
+            cachedBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Read the parts left by the previous sessions, from the least to the most recently used
+     */
+    private void ensureIndexed() {
+        if (indexed) {
+            return;
+        }
+        indexed = true;
+
+        File[] documentDirectories = directory.listFiles();
+        if (documentDirectories == null) {
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        for (File documentDirectory : documentDirectories) {
+            File[] partFiles = documentDirectory.listFiles();
+            if (partFiles == null) {
+                continue;
+            }
+            for (File partFile : partFiles) {
+                if (partFile.getName().endsWith(TEMP_SUFFIX)) {
+                    partFile.delete();
+                } else {
+                    files.add(partFile);
+                }
+            }
+        }
+        Collections.sort(files, (first, second) -> Long.compare(first.lastModified(), second.lastModified()));
+        for (File file : files) {
+            long bytes = file.length();
+            entries.put(file.getParentFile().getName() + File.separator + file.getName(), bytes);
+            cachedBytes += bytes;
+        }
+        trimToSize(maxBytes);
+    }
+}
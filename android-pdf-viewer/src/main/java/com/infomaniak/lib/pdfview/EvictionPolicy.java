@@ -0,0 +1,48 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import com.infomaniak.lib.pdfview.model.PagePart;
+
+/**
+ * Decides which cached parts are evicted first when the cache is full.
+ * Only passive parts, the ones the current view doesn't need, are scored: active parts are never evicted before them.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Evicts the least recently used parts first. This is the default.
+     */
+    EvictionPolicy LRU = (part, viewport) -> 0;
+
+    /**
+     * Evicts first the parts far from the viewport, behind the scroll direction or rendered for another zoom level,
+     * so that the parts the user is likely to scroll back to are kept.
+     */
+    EvictionPolicy VIEWPORT_DISTANCE = new ViewportDistanceEvictionPolicy();
+
+    /**
+     * Called on the UI thread.
+     *
+     * @param part     a passive part
+     * @param viewport what the user currently sees
+     * @return how much the part is worth keeping: the lowest score is evicted first, the least recently used part
+     * between equal scores
+     */
+    float getScore(PagePart part, Viewport viewport);
+}
@@ -0,0 +1,54 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import android.os.AsyncTask;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Computes the layout of the document for a new view size, off the UI thread, and hands it to
+ * {@link PDFView#onLayoutComputed} on the UI thread.
+ */
+class LayoutAsyncTask extends AsyncTask<Void, Void, PdfFile.Layout> {
+
+    private final WeakReference<PDFView> pdfViewReference;
+
+    private final PdfFile pdfFile;
+
+    private final PdfFile.LayoutTask layoutTask;
+
+    LayoutAsyncTask(PDFView pdfView, PdfFile pdfFile, PdfFile.LayoutTask layoutTask) {
+        this.pdfViewReference = new WeakReference<>(pdfView);
+        this.pdfFile = pdfFile;
+        this.layoutTask = layoutTask;
+    }
+
+    @Override
+    protected PdfFile.Layout doInBackground(Void... params) {
+        return layoutTask.compute();
+    }
+
+    @Override
+    protected void onPostExecute(PdfFile.Layout layout) {
+        PDFView pdfView = pdfViewReference.get();
+        if (pdfView != null) {
+            pdfView.onLayoutComputed(pdfFile, layout, layoutTask.getVersion());
+        }
+    }
+}
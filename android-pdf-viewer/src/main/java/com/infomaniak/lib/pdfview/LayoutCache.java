@@ -0,0 +1,145 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static com.infomaniak.lib.pdfview.util.Constants.Cache.LAYOUT_CACHE_FILES;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Original page sizes of the documents opened before, on disk under {@link Context#getCacheDir()}, so that reopening
+ * a document doesn't ask pdfium for the size of each page again.
+ * <p>
+ * Each document has a file named after its fingerprint, holding a header then the width and height of each page of
+ * the document. The header has a version, to ignore files written in an older format, and the page count, to ignore
+ * files which don't match the document anymore. Only the most recently used files are kept.
+ * <p>
+ * Files are read and written on the loading threads, never on the UI thread.
+ */
+final class LayoutCache {
+
+    private static final String TAG = LayoutCache.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "pdfview-layouts";
+    private static final String FILE_SUFFIX = ".layout";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int FILE_MAGIC = 0x5044464c;
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_BYTES = 3 * Integer.BYTES;
+
+    private static LayoutCache instance;
+
+    private final File directory;
+
+    private LayoutCache(File directory) {
+        this.directory = directory;
+    }
+
+    static synchronized LayoutCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new LayoutCache(new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * @param documentKey fingerprint of the document
+     * @param pagesCount  page count of the document, the file is ignored if it has another one
+     * @return the width then the height of each page of the document, or null if they're not cached
+     */
+    @Nullable
+    synchronized int[] read(String documentKey, int pagesCount) {
+        File file = new File(directory, documentKey + FILE_SUFFIX);
+        if (file.length() != HEADER_BYTES + 2L * pagesCount * Integer.BYTES) {
+            return null;
+        }
+
+        byte[] bytes = new byte[(int) file.length()];
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            input.readFully(bytes);
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION || buffer.getInt() != pagesCount) {
+            file.delete();
+            return null;
+        }
+        int[] pageSizes = new int[2 * pagesCount];
+        buffer.asIntBuffer().get(pageSizes);
+
+        // Keep the most recently used files when trimming
+        file.setLastModified(System.currentTimeMillis());
+        return pageSizes;
+    }
+
+    /**
+     * @param pageSizes the width then the height of each page of the document
+     */
+    synchronized void write(String documentKey, int[] pageSizes) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        File file = new File(directory, documentKey + FILE_SUFFIX);
+        File tempFile = new File(directory, documentKey + FILE_SUFFIX + TEMP_SUFFIX);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + pageSizes.length * Integer.BYTES);
+        buffer.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(pageSizes.length / 2);
+        buffer.asIntBuffer().put(pageSizes);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.write(buffer.array());
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write layout " + file.getName(), e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return;
+        }
+        trim();
+    }
+
+    /**
+     * Delete the least recently used files past the maximum count
+     */
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= LAYOUT_CACHE_FILES) {
+            return;
+        }
+        Arrays.sort(files, (first, second) -> Long.compare(second.lastModified(), first.lastModified()));
+        for (int i = LAYOUT_CACHE_FILES; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+}
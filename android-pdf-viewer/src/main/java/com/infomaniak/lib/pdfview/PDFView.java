@@ -19,7 +19,9 @@
 
 package com.infomaniak.lib.pdfview;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -36,8 +38,10 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseBooleanArray;
 import android.widget.RelativeLayout;
 
 import androidx.annotation.FloatRange;
@@ -52,6 +56,7 @@ import com.infomaniak.lib.pdfview.listener.OnDrawListener;
 import com.infomaniak.lib.pdfview.listener.OnErrorListener;
 import com.infomaniak.lib.pdfview.listener.OnLoadCompleteListener;
 import com.infomaniak.lib.pdfview.listener.OnLongPressListener;
+import com.infomaniak.lib.pdfview.listener.OnMemoryTrimListener;
 import com.infomaniak.lib.pdfview.listener.OnPageChangeListener;
 import com.infomaniak.lib.pdfview.listener.OnPageErrorListener;
 import com.infomaniak.lib.pdfview.listener.OnPageScrollListener;
@@ -123,11 +128,77 @@ public class PDFView extends RelativeLayout {
 
     private ScrollDir scrollDir = ScrollDir.NONE;
 
+    /**
+     * Last direction the view scrolled in, which stays when the view stops
+     */
+    private ScrollDir lastScrollDir = ScrollDir.NONE;
+
+    /**
+     * Smoothed scroll velocity along the scroll axis, in pixels per second
+     */
+    private float scrollVelocity;
+
+    private long lastMoveTime;
+
+    /**
+     * Page at the center of the screen, prefetch direction, prefetch screens and zoom the queued renderings were last
+     * prioritized for, see {@link #reprioritizeIfMoved()}
+     */
+    private int prioritizedPage = -1;
+
+    private ScrollDir prioritizedDir = ScrollDir.NONE;
+
+    private int prioritizedPrefetchScreens;
+
+    private float prioritizedZoom;
+
+    /**
+     * Screen lengths loaded ahead of the viewport, see {@link #setPrefetchWindow(float)}
+     */
+    private float prefetchWindow = Constants.Prefetch.DEFAULT_SCREENS;
+
+    /**
+     * What the user currently sees, given to the eviction policy of the cache manager
+     */
+    private final Viewport viewport = new Viewport(this);
+
+    /**
+     * Shares its memory budget with other views when set
+     */
+    private SharedRenderCache sharedRenderCache;
+
     /**
      * Rendered parts go to the cache manager
      */
     CacheManager cacheManager;
 
+    /**
+     * Size of the rendered parts of each page, from their measured render time. Null until the document is loaded.
+     */
+    PartSizeManager partSizeManager;
+
+    /**
+     * Rendered parts are also saved there when the disk cache is enabled, null otherwise
+     */
+    DiskTileCache diskTileCache;
+
+    /**
+     * Page sizes are saved there and read back when the layout cache is enabled, null otherwise
+     */
+    LayoutCache layoutCache;
+
+    /**
+     * Pages asked by the last {@link #loadPagesForPrinting()}, until they are all rendered. The workers render them
+     * in any order, so the printing listener is only called once as many pages are cached for printing.
+     */
+    private int printingPagesCount;
+
+    /**
+     * Factor applied to the printing quality by the last {@link #loadPagesForPrinting()}, lowered each time a page
+     * doesn't fit in the printing budget
+     */
+    private float printingRatioFactor = 1f;
+
     /**
      * Animation manager manage all offset and zoom animation
      */
@@ -180,13 +251,44 @@ public class PDFView extends RelativeLayout {
     private DecodingAsyncTask decodingAsyncTask;
 
     /**
-     * The thread {@link #renderingHandler} will run on
+     * Async task measuring the pages whose size is estimated, in lazy mode
+     */
+    private PageSizesAsyncTask pageSizesAsyncTask;
+
+    /**
+     * Async task computing the layout for the new view size
+     */
+    private LayoutAsyncTask layoutAsyncTask;
+
+    /**
+     * The thread the first worker of {@link #renderingEngine} will run on
      */
     private HandlerThread renderingHandlerThread;
     /**
-     * Handler always waiting in the background and rendering tasks
+     * Workers always waiting in the background and rendering tasks
+     */
+    RenderingEngine renderingEngine;
+
+    /**
+     * Offsets where the current fling stops, see {@link #setFlingDestination(float, float)}
+     */
+    private boolean flingDestination;
+
+    private float flingDestinationX;
+
+    private float flingDestinationY;
+
+    /**
+     * Number of threads rendering the parts, see {@link #setRenderingThreads(int)}
      */
-    RenderingHandler renderingHandler;
+    private int renderingThreads = 1;
+
+    /**
+     * Source and password of the loaded document, so that the rendering workers can open it again
+     */
+    private DocumentSource documentSource;
+
+    private String documentPassword;
 
     private PagesLoader pagesLoader;
 
@@ -250,6 +352,14 @@ public class PDFView extends RelativeLayout {
      */
     private float thumbnailRatio = Constants.THUMBNAIL_RATIO;
 
+    /**
+     * True for a while after a critical memory pressure, parts are then rendered with RGB_565 format and thumbnails
+     * with a lower ratio whatever the settings
+     */
+    private boolean lowMemoryMode = false;
+
+    private final Runnable endLowMemoryMode = () -> lowMemoryMode = false;
+
     /**
      * Horizontal border in pixels. This value represent how far you can scroll after an horizontal border of the PDF.
      */
@@ -266,6 +376,16 @@ public class PDFView extends RelativeLayout {
      */
     private boolean annotationRendering = false;
 
+    /**
+     * True if the parts should first be shown at a lower resolution, see {@link #setProgressiveRendering(boolean)}
+     */
+    private boolean progressiveRendering = false;
+
+    /**
+     * True if only the first pages are measured before the document is shown, see {@link #setLazyPageSizes(boolean)}
+     */
+    private boolean lazyPageSizes = false;
+
     /**
      * True if the view should render during scaling<br/>
      * Can not be forced on older API versions (< Build.VERSION_CODES.KITKAT) as the GestureDetector does
@@ -309,7 +429,19 @@ public class PDFView extends RelativeLayout {
     /**
      * Pages numbers used when calling onDrawAllListener
      */
-    private List<Integer> onDrawPagesNums = new ArrayList<>(10);
+    private final SparseBooleanArray onDrawPagesNums = new SparseBooleanArray(10);
+
+    /**
+     * Thumbnails and parts drawn by the current frame, reused from one frame to the next
+     */
+    private final List<PagePart> drawnThumbnails = new ArrayList<>(Constants.Cache.THUMBNAILS_CACHE_SIZE);
+    private final List<PagePart> drawnParts = new ArrayList<>(Constants.Cache.CACHE_SIZE);
+
+    /**
+     * Bitmap and destination rectangles of the part being drawn, reused for every part
+     */
+    private final Rect drawSrcRect = new Rect();
+    private final RectF drawDstRect = new RectF();
 
     /**
      * Holds info whether view has been added to layout and has width and height
@@ -321,6 +453,26 @@ public class PDFView extends RelativeLayout {
      */
     private Configurator waitingDocumentConfigurator;
 
+    /**
+     * Gives memory back when the system asks for it, registered while the view is attached
+     */
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            // Nothing to do, size changes are handled by onSizeChanged
+        }
+    };
+
     /**
      * Construct the initial view
      */
@@ -331,7 +483,10 @@ public class PDFView extends RelativeLayout {
             return;
         }
 
-        cacheManager = new CacheManager();
+        cacheManager = new CacheManager(
+                CacheManager.defaultMaxBytes(context),
+                CacheManager.defaultPrintingMaxBytes(context)
+        );
         animationManager = new AnimationManager(this);
         dragPinchManager = new DragPinchManager(this, animationManager);
         pagesLoader = new PagesLoader(this);
@@ -344,7 +499,14 @@ public class PDFView extends RelativeLayout {
         setWillNotDraw(false);
     }
 
+    /**
+     * @return the pages rendered by {@link #loadPagesForPrinting()} in page order, or the cached thumbnails if the
+     * pages haven't been rendered for printing
+     */
     public List<Bitmap> getPagesAsBitmaps() {
+        if (cacheManager.getPrintPagesCount() > 0) {
+            return cacheManager.getPrintBitmaps();
+        }
         ArrayList<Bitmap> bitmaps = new ArrayList<>();
         List<PagePart> pageParts = cacheManager.getThumbnails();
         for (int i = 0; i < pageParts.size(); i++) {
@@ -363,6 +525,8 @@ public class PDFView extends RelativeLayout {
         }
 
         recycled = false;
+        documentSource = docSource;
+        documentPassword = password;
         // Start decoding document
         decodingAsyncTask = new DecodingAsyncTask(docSource, password, userPages, this, pdfiumCore);
         decodingAsyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
@@ -510,16 +674,29 @@ public class PDFView extends RelativeLayout {
         dragPinchManager.disable();
 
         // Stop tasks
-        if (renderingHandler != null) {
-            renderingHandler.stop();
-            renderingHandler.removeMessages(RenderingHandler.MSG_RENDER_TASK);
+        if (renderingEngine != null) {
+            renderingEngine.quit();
         }
         if (decodingAsyncTask != null) {
             decodingAsyncTask.cancel(true);
         }
+        if (pageSizesAsyncTask != null) {
+            pageSizesAsyncTask.cancel(true);
+            pageSizesAsyncTask = null;
+        }
+        if (layoutAsyncTask != null) {
+            layoutAsyncTask.cancel(true);
+            layoutAsyncTask = null;
+        }
 
         // Clear caches
         cacheManager.recycle();
+        printingPagesCount = 0;
+        prioritizedPage = -1;
+        if (sharedRenderCache != null) {
+            sharedRenderCache.unregister(cacheManager);
+            sharedRenderCache = null;
+        }
 
         if (scrollHandle != null && isScrollHandleInit) {
             scrollHandle.destroyLayout();
@@ -530,7 +707,10 @@ public class PDFView extends RelativeLayout {
             pdfFile = null;
         }
 
-        renderingHandler = null;
+        renderingEngine = null;
+        partSizeManager = null;
+        documentSource = null;
+        documentPassword = null;
         scrollHandle = null;
         isScrollHandleInit = false;
         currentXOffset = currentYOffset = 0;
@@ -563,10 +743,16 @@ public class PDFView extends RelativeLayout {
         if (renderingHandlerThread == null) {
             renderingHandlerThread = new HandlerThread("PDF renderer");
         }
+        if (!isInEditMode()) {
+            getContext().registerComponentCallbacks(memoryCallbacks);
+        }
     }
 
     @Override
     protected void onDetachedFromWindow() {
+        if (!isInEditMode()) {
+            getContext().unregisterComponentCallbacks(memoryCallbacks);
+        }
         callbacks.callOnDetachComplete();
         recycle();
         if (renderingHandlerThread != null) {
@@ -580,6 +766,39 @@ public class PDFView extends RelativeLayout {
         super.onDetachedFromWindow();
     }
 
+    /**
+     * Release memory according to the level given by {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    void trimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
+
+        // Pooled bitmaps are only a shortcut for the next renderings
+        BitmapPool bitmapPool = cacheManager.getBitmapPool();
+        long freedBytes = bitmapPool.getPooledBytes();
+        bitmapPool.clear();
+        freedBytes += cacheManager.dropPassiveParts();
+        freedBytes += cacheManager.dropInvisibleThumbnails(viewport);
+
+        boolean isCritical = level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+        if (isCritical) {
+            // Keep only what the user sees, and make the next renderings lighter for a while
+            freedBytes += cacheManager.dropInvisibleParts(viewport);
+            if (renderingEngine != null) {
+                // Closed pages aren't counted, pdfium doesn't tell how much memory they used
+                renderingEngine.releaseIdlePages();
+            }
+            lowMemoryMode = true;
+            removeCallbacks(endLowMemoryMode);
+            postDelayed(endLowMemoryMode, Constants.Cache.LOW_MEMORY_DURATION);
+        }
+
+        redraw();
+        callbacks.callOnMemoryTrim(level, freedBytes);
+    }
+
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         hasSize = true;
@@ -606,7 +825,12 @@ public class PDFView extends RelativeLayout {
         }
 
         animationManager.stopAll();
-        pdfFile.recalculatePageSizes(new Size(w, h));
+
+        // The layout is scaled at once like the page at the center, so that the rendered parts are drawn scaled
+        // until the new ones are rendered. The exact layout is computed in the background
+        int centerPage = pdfFile.getPageAtOffset(swipeVertical ? centerPointInStripYOffset : centerPointInStripXOffset,
+                zoom);
+        pdfFile.scaleLayout(new Size(w, h), centerPage);
 
         if (swipeVertical) {
             currentXOffset = -relativeCenterPointInStripXOffset * pdfFile.getMaxPageWidth() + w * 0.5f;
@@ -617,6 +841,31 @@ public class PDFView extends RelativeLayout {
         }
         moveTo(currentXOffset, currentYOffset);
         loadPageByOffset();
+
+        computeLayout(new Size(w, h));
+    }
+
+    /**
+     * Compute the layout for the view size and the current page sizes in the background, instead of the one being
+     * computed if any
+     */
+    private void computeLayout(Size viewSize) {
+        if (layoutAsyncTask != null) {
+            layoutAsyncTask.cancel(true);
+        }
+        layoutAsyncTask = new LayoutAsyncTask(this, pdfFile, pdfFile.newLayoutTask(viewSize));
+        layoutAsyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Called on the UI thread with the layout computed in the background, which replaces the current one keeping the
+     * current page where it is
+     */
+    void onLayoutComputed(PdfFile layoutFile, PdfFile.Layout layout, int version) {
+        if (layoutFile != pdfFile || version != pdfFile.getLayoutVersion()) {
+            return;
+        }
+        relayoutKeepingPage(() -> pdfFile.setLayout(layout, version));
     }
 
     @Override
@@ -721,22 +970,28 @@ public class PDFView extends RelativeLayout {
         // Moves the canvas before drawing any element
         canvas.translate(currentXOffset, currentYOffset);
 
+        // Nothing is allocated from here, this runs on every frame
+
         // Draws thumbnails
-        for (PagePart part : cacheManager.getThumbnails()) {
-            drawPart(canvas, part);
+        cacheManager.getThumbnails(drawnThumbnails);
+        for (int i = 0; i < drawnThumbnails.size(); i++) {
+            drawPart(canvas, drawnThumbnails.get(i));
         }
+        drawnThumbnails.clear();
 
-        // Draws parts
-        for (PagePart part : cacheManager.getPageParts()) {
+        // Draws parts, the ones of sharper zoom levels over the coarser ones
+        cacheManager.getPageParts(drawnParts);
+        for (int i = 0; i < drawnParts.size(); i++) {
+            PagePart part = drawnParts.get(i);
             drawPart(canvas, part);
-            if (callbacks.getOnDrawAll() != null
-                    && !onDrawPagesNums.contains(part.getPage())) {
-                onDrawPagesNums.add(part.getPage());
+            if (callbacks.getOnDrawAll() != null) {
+                onDrawPagesNums.put(part.getPage(), true);
             }
         }
+        drawnParts.clear();
 
-        for (Integer page : onDrawPagesNums) {
-            drawWithListener(canvas, page, callbacks.getOnDrawAll());
+        for (int i = 0; i < onDrawPagesNums.size(); i++) {
+            drawWithListener(canvas, onDrawPagesNums.keyAt(i), callbacks.getOnDrawAll());
         }
         onDrawPagesNums.clear();
 
@@ -758,10 +1013,9 @@ public class PDFView extends RelativeLayout {
             }
 
             canvas.translate(translateX, translateY);
-            SizeF size = pdfFile.getPageSize(page);
             listener.onLayerDrawn(canvas,
-                    toCurrentScale(size.getWidth()),
-                    toCurrentScale(size.getHeight()),
+                    toCurrentScale(pdfFile.getPageWidth(page)),
+                    toCurrentScale(pdfFile.getPageHeight(page)),
                     page);
 
             canvas.translate(-translateX, -translateY);
@@ -783,31 +1037,30 @@ public class PDFView extends RelativeLayout {
         // Move to the target page
         float localTranslationX = 0;
         float localTranslationY = 0;
-        SizeF size = pdfFile.getPageSize(part.getPage());
+        float pageWidth = pdfFile.getPageWidth(part.getPage());
+        float pageHeight = pdfFile.getPageHeight(part.getPage());
 
         if (swipeVertical) {
             localTranslationY = pdfFile.getPageOffset(part.getPage(), zoom);
-            float maxWidth = pdfFile.getMaxPageWidth();
-            localTranslationX = toCurrentScale(maxWidth - size.getWidth()) / 2;
+            localTranslationX = pdfFile.getSecondaryPageOffset(part.getPage(), zoom);
         } else {
             localTranslationX = pdfFile.getPageOffset(part.getPage(), zoom);
-            float maxHeight = pdfFile.getMaxPageHeight();
-            localTranslationY = toCurrentScale(maxHeight - size.getHeight()) / 2;
+            localTranslationY = pdfFile.getSecondaryPageOffset(part.getPage(), zoom);
         }
         canvas.translate(localTranslationX, localTranslationY);
 
-        Rect srcRect = new Rect(0, 0, renderedBitmap.getWidth(),
-                renderedBitmap.getHeight());
+        drawSrcRect.set(0, 0, renderedBitmap.getWidth(), renderedBitmap.getHeight());
 
-        float offsetX = toCurrentScale(pageRelativeBounds.left * size.getWidth());
-        float offsetY = toCurrentScale(pageRelativeBounds.top * size.getHeight());
-        float width = toCurrentScale(pageRelativeBounds.width() * size.getWidth());
-        float height = toCurrentScale(pageRelativeBounds.height() * size.getHeight());
+        float offsetX = toCurrentScale(pageRelativeBounds.left * pageWidth);
+        float offsetY = toCurrentScale(pageRelativeBounds.top * pageHeight);
+        float width = toCurrentScale(pageRelativeBounds.width() * pageWidth);
+        float height = toCurrentScale(pageRelativeBounds.height() * pageHeight);
 
         // If we use float values for this rectangle, there will be
         // a possible gap between page parts, especially when
         // the zoom level is high.
-        RectF dstRect = new RectF((int) offsetX, (int) offsetY,
+        RectF dstRect = drawDstRect;
+        dstRect.set((int) offsetX, (int) offsetY,
                 (int) (offsetX + width),
                 (int) (offsetY + height));
 
@@ -820,7 +1073,7 @@ public class PDFView extends RelativeLayout {
             return;
         }
 
-        canvas.drawBitmap(renderedBitmap, srcRect, dstRect, paint);
+        canvas.drawBitmap(renderedBitmap, drawSrcRect, dstRect, paint);
 
         if (Constants.DEBUG_MODE) {
             debugPaint.setColor(part.getPage() % 2 == 0 ? Color.RED : Color.BLUE);
@@ -837,15 +1090,17 @@ public class PDFView extends RelativeLayout {
      * the current page displayed
      */
     public void loadPages() {
-        if (pdfFile == null || renderingHandler == null) {
+        if (pdfFile == null || renderingEngine == null) {
             return;
         }
 
-        // Cancel all current tasks
-        renderingHandler.removeMessages(RenderingHandler.MSG_RENDER_TASK);
+        // Only queue the parts which aren't wanted yet, and drop the queued ones no longer wanted
+        renderingEngine.beginSet();
         cacheManager.makeANewSet();
 
         pagesLoader.loadPages();
+        renderingEngine.endSet();
+        renderingEngine.preOpenPages(currentPage, getPrefetchDir());
         redraw();
     }
 
@@ -854,15 +1109,29 @@ public class PDFView extends RelativeLayout {
      * Implement {@link com.infomaniak.lib.pdfview.listener.OnReadyForPrintingListener} to retrieve the bitmaps.
      */
     public void loadPagesForPrinting() {
-        if (pdfFile == null || renderingHandler == null) {
+        loadPagesForPrinting(1f);
+    }
+
+    private void loadPagesForPrinting(float ratioFactor) {
+        if (pdfFile == null || renderingEngine == null) {
             return;
         }
 
         // Cancel all current tasks
-        renderingHandler.removeMessages(RenderingHandler.MSG_RENDER_TASK);
+        renderingEngine.cancelAll();
         cacheManager.makeANewSet();
 
-        pagesLoader.loadPagesForPrinting(getPageCount());
+        printingPagesCount = getPageCount();
+        printingRatioFactor = ratioFactor;
+        pagesLoader.loadPagesForPrinting(printingPagesCount, ratioFactor);
+        callOnReadyForPrintingIfComplete();
+    }
+
+    private void callOnReadyForPrintingIfComplete() {
+        if (printingPagesCount > 0 && cacheManager.getPrintPagesCount() >= printingPagesCount) {
+            printingPagesCount = 0;
+            callbacks.callsOnReadyForPrinting(getPagesAsBitmaps());
+        }
     }
 
     /**
@@ -872,6 +1141,7 @@ public class PDFView extends RelativeLayout {
         state = State.LOADED;
 
         this.pdfFile = pdfFile;
+        partSizeManager = new PartSizeManager(pdfFile.getPagesCount(), getResources().getDisplayMetrics().density);
 
         if (renderingHandlerThread == null) {
             return;
@@ -880,8 +1150,9 @@ public class PDFView extends RelativeLayout {
         if (!renderingHandlerThread.isAlive()) {
             renderingHandlerThread.start();
         }
-        renderingHandler = new RenderingHandler(renderingHandlerThread.getLooper(), this);
-        renderingHandler.start();
+        renderingEngine = new RenderingEngine(this, renderingHandlerThread.getLooper(), renderingThreads, pdfiumCore,
+                documentSource, documentPassword);
+        renderingEngine.start();
 
         if (scrollHandle != null) {
             scrollHandle.setupLayout(this);
@@ -893,6 +1164,54 @@ public class PDFView extends RelativeLayout {
         callbacks.callOnLoadComplete(pdfFile.getPagesCount());
 
         jumpTo(defaultPage, false);
+
+        if (pdfFile.hasEstimatedPageSizes()) {
+            pageSizesAsyncTask = new PageSizesAsyncTask(this, pdfFile, layoutCache);
+            pageSizesAsyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    /**
+     * Called on the UI thread with a batch of pages measured in lazy mode. If the estimated size of some pages was
+     * wrong, the layout is computed again in the background.
+     */
+    void onPageSizesMeasured(PdfFile measuredFile, Size[] sizes, int from, int to) {
+        if (measuredFile != pdfFile) {
+            return;
+        }
+        boolean changed = false;
+        for (int page = from; page < to; page++) {
+            if (pdfFile.setMeasuredPageSize(page, sizes[page])) {
+                // Its parts were rendered for the estimated size
+                cacheManager.dropPageParts(page);
+                changed = true;
+            }
+        }
+        if (changed) {
+            computeLayout(new Size(getWidth(), getHeight()));
+        }
+    }
+
+    /**
+     * Replace the layout, keeping the page at the start of the screen where it is
+     */
+    private void relayoutKeepingPage(Runnable relayout) {
+        float offset = swipeVertical ? currentYOffset : currentXOffset;
+        int anchorPage = pdfFile.getPageAtOffset(-offset, zoom);
+        float offsetInAnchorPage = -offset - pdfFile.getPageOffset(anchorPage, zoom);
+        relayout.run();
+        float newOffset = -(pdfFile.getPageOffset(anchorPage, zoom) + offsetInAnchorPage);
+
+        if (Math.abs(newOffset - offset) >= 1) {
+            // Animations go to offsets of the previous layout
+            animationManager.stopAll();
+        }
+        if (swipeVertical) {
+            moveTo(currentXOffset, newOffset);
+        } else {
+            moveTo(newOffset, currentYOffset);
+        }
+        loadPageByOffset();
     }
 
     void loadError(Throwable t) {
@@ -925,11 +1244,16 @@ public class PDFView extends RelativeLayout {
             callbacks.callOnRender(pdfFile.getPagesCount());
         }
 
-        if (part.isThumbnail()) {
-            cacheManager.cacheThumbnail(part, isForPrinting);
-            if (isForPrinting && pdfFile.getPagesCount() - 1 == part.getPage()) {
-                callbacks.callsOnReadyForPrinting(getPagesAsBitmaps());
+        if (isForPrinting) {
+            if (cacheManager.cachePrintPage(part)) {
+                callOnReadyForPrintingIfComplete();
+            } else if (printingPagesCount > 0) {
+                // Over the printing budget, all the pages are rendered again smaller rather than printed without it
+                cacheManager.clearPrintPages();
+                loadPagesForPrinting(printingRatioFactor * Constants.Cache.PRINTING_RATIO_RETRY_FACTOR);
             }
+        } else if (part.isThumbnail()) {
+            cacheManager.cacheThumbnail(part, currentPage);
         } else {
             cacheManager.cachePart(part);
         }
@@ -1017,6 +1341,8 @@ public class PDFView extends RelativeLayout {
             }
         }
 
+        updateScrollVelocity(swipeVertical ? offsetY - currentYOffset : offsetX - currentXOffset);
+
         currentXOffset = offsetX;
         currentYOffset = offsetY;
         float positionOffset = getPositionOffset();
@@ -1027,9 +1353,37 @@ public class PDFView extends RelativeLayout {
 
         callbacks.callOnPageScroll(getCurrentPage(), positionOffset);
 
+        // Render what is now closest to the centre first
+        reprioritizeIfMoved();
+
         redraw();
     }
 
+    /**
+     * Prioritize the queued renderings again, only when the page at the center of the screen, the prefetch window or
+     * the zoom changed. Within a page, the parts keep their order until then, which saves going through the queue on
+     * every frame of a scroll.
+     */
+    private void reprioritizeIfMoved() {
+        if (renderingEngine == null) {
+            return;
+        }
+        float screenLength = swipeVertical ? getHeight() : getWidth();
+        float offset = swipeVertical ? currentYOffset : currentXOffset;
+        int centerPage = pdfFile.getPageAtOffset(-offset + screenLength * 0.5f, zoom);
+        ScrollDir prefetchDir = getPrefetchDir();
+        int prefetchScreens = screenLength > 0 ? (int) (getPrefetchDistance() / screenLength) : 0;
+        if (centerPage == prioritizedPage && prefetchDir == prioritizedDir
+                && prefetchScreens == prioritizedPrefetchScreens && zoom == prioritizedZoom) {
+            return;
+        }
+        prioritizedPage = centerPage;
+        prioritizedDir = prefetchDir;
+        prioritizedPrefetchScreens = prefetchScreens;
+        prioritizedZoom = zoom;
+        renderingEngine.reprioritize();
+    }
+
     void loadPageByOffset() {
         if (0 == pdfFile.getPagesCount()) {
             return;
@@ -1229,7 +1583,7 @@ public class PDFView extends RelativeLayout {
             Log.e(TAG, "Cannot fit, document not rendered yet");
             return;
         }
-        zoomTo(getWidth() / pdfFile.getPageSize(page).getWidth());
+        zoomTo(getWidth() / pdfFile.getPageWidth(page));
         jumpTo(page);
     }
 
@@ -1252,6 +1606,94 @@ public class PDFView extends RelativeLayout {
         return currentYOffset;
     }
 
+    ScrollDir getScrollDir() {
+        return scrollDir;
+    }
+
+    Viewport getViewport() {
+        return viewport;
+    }
+
+    private void updateScrollVelocity(float distance) {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - lastMoveTime;
+        if (elapsed > Constants.Prefetch.VELOCITY_TIMEOUT) {
+            scrollVelocity = 0;
+        } else if (elapsed > 0) {
+            scrollVelocity += 0.5f * (Math.abs(distance) * 1000f / elapsed - scrollVelocity);
+        }
+        lastMoveTime = now;
+        if (scrollDir != ScrollDir.NONE) {
+            lastScrollDir = scrollDir;
+        }
+    }
+
+    /**
+     * @return the direction to prefetch in: the last scroll direction, towards the end before any scroll
+     */
+    ScrollDir getPrefetchDir() {
+        return lastScrollDir == ScrollDir.NONE ? ScrollDir.END : lastScrollDir;
+    }
+
+    /**
+     * @return how far ahead of the viewport to load, in pixels: the prefetch window, widened with the scroll velocity
+     */
+    float getPrefetchDistance() {
+        if (prefetchWindow <= 0) {
+            return 0;
+        }
+        float screenLength = swipeVertical ? getHeight() : getWidth();
+        if (screenLength <= 0) {
+            return 0;
+        }
+        boolean stopped = SystemClock.uptimeMillis() - lastMoveTime > Constants.Prefetch.VELOCITY_TIMEOUT;
+        float velocity = stopped ? 0 : scrollVelocity;
+        float velocityScreens = Math.min(
+                velocity * Constants.Prefetch.LOOKAHEAD_SECONDS / screenLength,
+                Constants.Prefetch.MAX_VELOCITY_SCREENS
+        );
+        return (prefetchWindow + velocityScreens) * screenLength;
+    }
+
+    /**
+     * Load the parts of where a fling stops as soon as it starts, before those of the pages it goes through.
+     * Until {@link #clearFlingDestination()}, only the thumbnails of the pages on the way are loaded.
+     *
+     * @param offsetX X offset when the fling stops
+     * @param offsetY Y offset when the fling stops
+     */
+    void setFlingDestination(float offsetX, float offsetY) {
+        flingDestination = true;
+        flingDestinationX = offsetX;
+        flingDestinationY = offsetY;
+        if (renderingEngine != null) {
+            renderingEngine.setDestination(offsetX, offsetY);
+        }
+        loadPages();
+    }
+
+    void clearFlingDestination() {
+        if (!flingDestination) {
+            return;
+        }
+        flingDestination = false;
+        if (renderingEngine != null) {
+            renderingEngine.clearDestination();
+        }
+    }
+
+    boolean hasFlingDestination() {
+        return flingDestination;
+    }
+
+    float getFlingDestinationX() {
+        return flingDestinationX;
+    }
+
+    float getFlingDestinationY() {
+        return flingDestinationY;
+    }
+
     public float toRealScale(float size) {
         return size / zoom;
     }
@@ -1264,6 +1706,16 @@ public class PDFView extends RelativeLayout {
         return zoom;
     }
 
+    /**
+     * @return the zoom the parts are rendered for: the smallest power of {@link Constants#ZOOM_BUCKET_FACTOR} not
+     * below the current zoom, so that parts are never enlarged when drawn by more than the bucket tolerance
+     */
+    float getRenderingZoom() {
+        double bucket = Math.log(zoom) / Math.log(Constants.ZOOM_BUCKET_FACTOR);
+        double tolerance = Math.log(1 + Constants.ZOOM_BUCKET_TOLERANCE) / Math.log(Constants.ZOOM_BUCKET_FACTOR);
+        return (float) Math.pow(Constants.ZOOM_BUCKET_FACTOR, Math.ceil(bucket - tolerance));
+    }
+
     public boolean isZooming() {
         return zoom != minZoom;
     }
@@ -1343,6 +1795,131 @@ public class PDFView extends RelativeLayout {
         return thumbnailRatio;
     }
 
+    /**
+     * @return {@link #isBestQuality()}, unless the memory is low
+     */
+    boolean isRenderingBestQuality() {
+        return bestQuality && !lowMemoryMode;
+    }
+
+    /**
+     * @return {@link #getThumbnailRatio()}, lowered when the memory is low
+     */
+    float getRenderingThumbnailRatio() {
+        return lowMemoryMode ? thumbnailRatio * Constants.Cache.LOW_MEMORY_THUMBNAIL_RATIO_FACTOR : thumbnailRatio;
+    }
+
+    /**
+     * Set the memory the rendered parts can use, the oldest parts are evicted beyond that
+     *
+     * @param bytes maximum bytes used by the bitmaps of the rendered parts
+     */
+    public void setCacheMemoryBudget(long bytes) {
+        if (bytes <= 0) throw new IllegalArgumentException("cacheMemoryBudget must be greater than 0");
+        cacheManager.setMaxBytes(bytes);
+    }
+
+    public long getCacheMemoryBudget() {
+        return cacheManager.getMaxBytes();
+    }
+
+    /**
+     * Keep the rendered parts on disk too, so that they're not rendered again when the document is reopened.
+     * Only documents which source gives a fingerprint are cached, see {@link DocumentSource#getFingerprint()}, and
+     * which are loaded while the disk cache is enabled.
+     */
+    public void setDiskCacheEnabled(boolean enabled) {
+        diskTileCache = enabled ? DiskTileCache.getInstance(getContext()) : null;
+    }
+
+    public boolean isDiskCacheEnabled() {
+        return diskTileCache != null;
+    }
+
+    /**
+     * Keep the page sizes of the documents on disk, so that they're not measured again when the document is
+     * reopened. Only documents which source gives a fingerprint are cached, see
+     * {@link DocumentSource#getFingerprint()}. Applied to the next loaded document.
+     */
+    public void setLayoutCacheEnabled(boolean enabled) {
+        layoutCache = enabled ? LayoutCache.getInstance(getContext()) : null;
+    }
+
+    public boolean isLayoutCacheEnabled() {
+        return layoutCache != null;
+    }
+
+    /**
+     * Render the parts on several threads, 1 by default. The pdfium binding serializes its native calls, so extra
+     * threads only overlap the work around them, while each one opens its own copy of the document. Only raise it
+     * where RenderingThreadsBenchmark, in the instrumented tests, shows a speedup. The sources which can only be read
+     * once or which keep the document in memory are rendered on a single thread, see
+     * {@link DocumentSource#isInMemory()}. Applied to the next loaded document.
+     *
+     * @param renderingThreads number of rendering threads, at least 1
+     */
+    public void setRenderingThreads(int renderingThreads) {
+        if (renderingThreads < 1) throw new IllegalArgumentException("renderingThreads must be at least 1");
+        this.renderingThreads = renderingThreads;
+    }
+
+    public int getRenderingThreads() {
+        return renderingThreads;
+    }
+
+    /**
+     * @return the number of pages currently opened in pdfium, in all the documents used for rendering
+     */
+    public int getOpenedPagesCount() {
+        return pdfFile == null ? 0 : pdfFile.getOpenedPagesCount();
+    }
+
+    /**
+     * @return the number of pages closed so far to bound the opened pages
+     */
+    public int getClosedPagesCount() {
+        return pdfFile == null ? 0 : pdfFile.getClosedPagesCount();
+    }
+
+    /**
+     * @return the number of pages opened ahead of the scroll so far, before any of their parts was rendered
+     */
+    public int getPreOpenedPagesCount() {
+        return renderingEngine == null ? 0 : renderingEngine.getPreOpenedPagesCount();
+    }
+
+    /**
+     * Share the memory budget of the rendered parts with the other views using the same cache, until this view is
+     * recycled. It replaces {@link #setCacheMemoryBudget(long)}.
+     *
+     * @param sharedRenderCache the shared cache, or null to stop sharing. The budget then stays the last quota until
+     *                          {@link #setCacheMemoryBudget(long)} is called.
+     */
+    public void setSharedRenderCache(SharedRenderCache sharedRenderCache) {
+        if (this.sharedRenderCache != null) {
+            this.sharedRenderCache.unregister(cacheManager);
+        }
+        this.sharedRenderCache = sharedRenderCache;
+        if (sharedRenderCache != null) {
+            sharedRenderCache.register(cacheManager);
+        }
+    }
+
+    public SharedRenderCache getSharedRenderCache() {
+        return sharedRenderCache;
+    }
+
+    /**
+     * Set how the cached parts are chosen for eviction when the cache is full
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        cacheManager.setEvictionPolicy(evictionPolicy, viewport);
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return cacheManager.getEvictionPolicy();
+    }
+
     public void setHorizontalBorder(int horizontalBorderDP) {
         this.horizontalBorder = Util.getDP(getContext(), horizontalBorderDP);
     }
@@ -1371,6 +1948,53 @@ public class PDFView extends RelativeLayout {
         return annotationRendering;
     }
 
+    /**
+     * Show each missing part first at half the resolution and without annotations, which is much faster to render,
+     * then replace it with the sharp part. Previews are rendered before the sharp parts, and the sharp parts the
+     * viewport moved away from are not rendered anymore.
+     */
+    public void setProgressiveRendering(boolean progressiveRendering) {
+        this.progressiveRendering = progressiveRendering;
+    }
+
+    public boolean isProgressiveRendering() {
+        return progressiveRendering;
+    }
+
+    /**
+     * Only measure the pages around the default page before showing the document, the other pages get the most
+     * common size of a sample until they're measured in the background. The layout is then updated without moving
+     * the current page. Only documents of more than
+     * {@link com.infomaniak.lib.pdfview.util.Constants.LazyLayout#MIN_PAGES} pages are loaded lazily. Applied to the
+     * next loaded document.
+     */
+    public void setLazyPageSizes(boolean lazyPageSizes) {
+        this.lazyPageSizes = lazyPageSizes;
+    }
+
+    public boolean isLazyPageSizes() {
+        return lazyPageSizes;
+    }
+
+    int getDefaultPage() {
+        return defaultPage;
+    }
+
+    /**
+     * Load the parts ahead of the viewport in the scroll direction, so that they're ready when they show up. The
+     * window widens with the scroll velocity. These parts are rendered after the visible ones.
+     *
+     * @param screens screen lengths to load ahead when not scrolling, 0 to only load what is visible
+     */
+    public void setPrefetchWindow(float screens) {
+        if (screens < 0) throw new IllegalArgumentException("prefetchWindow can't be negative");
+        this.prefetchWindow = screens;
+    }
+
+    public float getPrefetchWindow() {
+        return prefetchWindow;
+    }
+
     public void enableRenderDuringScale(boolean renderDuringScale) {
         this.renderDuringScale = renderDuringScale;
     }
@@ -1546,6 +2170,8 @@ public class PDFView extends RelativeLayout {
 
         private OnPageErrorListener onPageErrorListener;
 
+        private OnMemoryTrimListener onMemoryTrimListener;
+
         private LinkHandler linkHandler = new DefaultLinkHandler(PDFView.this);
 
         private int defaultPage = 0;
@@ -1581,6 +2207,15 @@ public class PDFView extends RelativeLayout {
         private boolean touchPriority = false;
         private boolean useBestQuality = false;
         private float thumbnailRatio = Constants.THUMBNAIL_RATIO;
+        private long cacheMemoryBudget = CacheManager.defaultMaxBytes(getContext());
+        private boolean diskCache = false;
+        private boolean layoutCache = false;
+        private boolean progressiveRendering = false;
+        private boolean lazyPageSizes = false;
+        private float prefetchWindow = Constants.Prefetch.DEFAULT_SCREENS;
+        private int renderingThreads = 1;
+        private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+        private SharedRenderCache sharedRenderCache = null;
         private int horizontalBorder = 0;
         private int verticalBorder = 0;
 
@@ -1673,6 +2308,11 @@ public class PDFView extends RelativeLayout {
             return this;
         }
 
+        public Configurator onMemoryTrim(OnMemoryTrimListener onMemoryTrimListener) {
+            this.onMemoryTrimListener = onMemoryTrimListener;
+            return this;
+        }
+
         public Configurator linkHandler(LinkHandler linkHandler) {
             this.linkHandler = linkHandler;
             return this;
@@ -1781,6 +2421,96 @@ public class PDFView extends RelativeLayout {
             return this;
         }
 
+        /**
+         * By default, rendered parts can use a fraction of the memory class of the app
+         * ({@link android.app.ActivityManager#getMemoryClass()}), whatever their bitmap format and size.
+         * @param cacheMemoryBudget maximum bytes used by the bitmaps of the rendered parts
+         */
+        public Configurator cacheMemoryBudget(long cacheMemoryBudget) {
+            this.cacheMemoryBudget = cacheMemoryBudget;
+            return this;
+        }
+
+        /**
+         * Rendered parts are also kept on disk, under {@link Context#getCacheDir()}, to be displayed right away when
+         * the document is viewed again. Disabled by default.
+         * @param diskCache true to enable the disk cache
+         */
+        public Configurator diskCache(boolean diskCache) {
+            this.diskCache = diskCache;
+            return this;
+        }
+
+        /**
+         * Page sizes are kept on disk, under {@link Context#getCacheDir()}, so that the document is shown sooner when
+         * it's opened again. Disabled by default.
+         * @param layoutCache true to enable the layout cache
+         */
+        public Configurator layoutCache(boolean layoutCache) {
+            this.layoutCache = layoutCache;
+            return this;
+        }
+
+        /**
+         * Number of threads rendering the parts, 1 by default, see {@link PDFView#setRenderingThreads(int)}.
+         * @param renderingThreads number of rendering threads, at least 1
+         */
+        public Configurator renderingThreads(int renderingThreads) {
+            this.renderingThreads = renderingThreads;
+            return this;
+        }
+
+        /**
+         * Parts are first rendered at a lower resolution without annotations, then refined. Disabled by default.
+         * @param progressiveRendering true to enable progressive rendering
+         */
+        public Configurator progressiveRendering(boolean progressiveRendering) {
+            this.progressiveRendering = progressiveRendering;
+            return this;
+        }
+
+        /**
+         * Only measure the first shown pages of very large documents before showing them, the other pages are
+         * measured in the background. Disabled by default.
+         * @param lazyPageSizes true to measure the page sizes lazily
+         */
+        public Configurator lazyPageSizes(boolean lazyPageSizes) {
+            this.lazyPageSizes = lazyPageSizes;
+            return this;
+        }
+
+        /**
+         * Screen lengths loaded ahead of the viewport in the scroll direction, 0.5 by default. The window widens
+         * with the scroll velocity.
+         * @param screens screen lengths to load ahead, 0 to only load what is visible
+         */
+        public Configurator prefetchWindow(float screens) {
+            this.prefetchWindow = screens;
+            return this;
+        }
+
+        /**
+         * By default, the least recently used parts are evicted first when the cache is full.
+         * Use {@link EvictionPolicy#VIEWPORT_DISTANCE} to keep the parts close to the viewport instead, or a custom
+         * policy.
+         * @param evictionPolicy how the parts to evict are chosen
+         */
+        public Configurator evictionPolicy(EvictionPolicy evictionPolicy) {
+            this.evictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * Share one memory budget between several views, for example the pages of a {@code ViewPager2}. Each view
+         * gets an equal part of it, and the parts of a recycled view are given back to the others. It replaces
+         * {@link #cacheMemoryBudget(long)}.
+         * @param sharedRenderCache the cache shared by the views
+         */
+        public Configurator sharedRenderCache(SharedRenderCache sharedRenderCache) {
+            this.sharedRenderCache = sharedRenderCache;
+            return this;
+        }
+
         public Configurator horizontalBorder(int horizontalBorder) {
             this.horizontalBorder = horizontalBorder;
             return this;
@@ -1810,6 +2540,7 @@ public class PDFView extends RelativeLayout {
             PDFView.this.callbacks.setOnTap(onTapListener);
             PDFView.this.callbacks.setOnLongPress(onLongPressListener);
             PDFView.this.callbacks.setOnPageError(onPageErrorListener);
+            PDFView.this.callbacks.setOnMemoryTrim(onMemoryTrimListener);
             PDFView.this.callbacks.setLinkHandler(linkHandler);
             PDFView.this.setSwipeEnabled(enableSwipe);
             PDFView.this.setNightMode(nightMode);
@@ -1830,6 +2561,15 @@ public class PDFView extends RelativeLayout {
             PDFView.this.setMaxZoom(maxZoom);
             PDFView.this.useBestQuality(useBestQuality);
             PDFView.this.setThumbnailRatio(thumbnailRatio);
+            PDFView.this.setCacheMemoryBudget(cacheMemoryBudget);
+            PDFView.this.setDiskCacheEnabled(diskCache);
+            PDFView.this.setLayoutCacheEnabled(layoutCache);
+            PDFView.this.setRenderingThreads(renderingThreads);
+            PDFView.this.setProgressiveRendering(progressiveRendering);
+            PDFView.this.setLazyPageSizes(lazyPageSizes);
+            PDFView.this.setPrefetchWindow(prefetchWindow);
+            PDFView.this.setEvictionPolicy(evictionPolicy);
+            PDFView.this.setSharedRenderCache(sharedRenderCache);
             PDFView.this.setHorizontalBorder(horizontalBorder);
             PDFView.this.setVerticalBorder(verticalBorder);
             renderDuringScale(renderDuringScale);
@@ -0,0 +1,111 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static com.infomaniak.lib.pdfview.util.Constants.LazyLayout.BATCH_PAGES;
+
+import android.os.AsyncTask;
+
+import androidx.annotation.Nullable;
+
+import com.shockwave.pdfium.util.Size;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Measures the pages whose size was only estimated when the document was loaded in lazy mode, see
+ * {@link PDFView#setLazyPageSizes(boolean)}. The pages after the first shown ones are measured first, since they're
+ * the most likely to be scrolled to. Each batch is handed to {@link PDFView#onPageSizesMeasured} on the UI thread.
+ * Once all the pages are measured, their sizes are saved to the layout cache, if enabled.
+ */
+class PageSizesAsyncTask extends AsyncTask<Void, Integer, Void> {
+
+    private final WeakReference<PDFView> pdfViewReference;
+
+    private final PdfFile pdfFile;
+
+    /**
+     * Where to save the page sizes once they're all measured, null if they mustn't be saved
+     */
+    @Nullable
+    private final LayoutCache layoutCache;
+
+    /**
+     * Measured sizes by page, each batch is written before being published
+     */
+    private final Size[] sizes;
+
+    PageSizesAsyncTask(PDFView pdfView, PdfFile pdfFile, @Nullable LayoutCache layoutCache) {
+        this.pdfViewReference = new WeakReference<>(pdfView);
+        this.pdfFile = pdfFile;
+        this.layoutCache = pdfFile.isLayoutCacheable() ? layoutCache : null;
+        this.sizes = new Size[pdfFile.getPagesCount()];
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+        if (measure(pdfFile.getExactPagesTo(), pdfFile.getPagesCount()) && measure(0, pdfFile.getExactPagesFrom())
+                && layoutCache != null) {
+            saveLayout();
+        }
+        return null;
+    }
+
+    /**
+     * The layout of the UI thread can't be read here, the pages measured before the document was shown are
+     * measured again.
+     */
+    private void saveLayout() {
+        int[] pageSizes = new int[2 * sizes.length];
+        for (int page = 0; page < sizes.length; page++) {
+            Size size = sizes[page] != null ? sizes[page] : pdfFile.measurePageSize(page);
+            if (size == null || isCancelled()) {
+                return;
+            }
+            pageSizes[2 * page] = size.getWidth();
+            pageSizes[2 * page + 1] = size.getHeight();
+        }
+        layoutCache.write(pdfFile.getFingerprint(), pageSizes);
+    }
+
+    /**
+     * @return false if the measure was interrupted
+     */
+    private boolean measure(int from, int to) {
+        for (int batchFrom = from; batchFrom < to; batchFrom += BATCH_PAGES) {
+            int batchTo = Math.min(to, batchFrom + BATCH_PAGES);
+            for (int page = batchFrom; page < batchTo; page++) {
+                Size size = pdfFile.measurePageSize(page);
+                if (size == null || isCancelled()) {
+                    return false;
+                }
+                sizes[page] = size;
+            }
+            publishProgress(batchFrom, batchTo);
+        }
+        return true;
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... batch) {
+        PDFView pdfView = pdfViewReference.get();
+        if (pdfView != null && !isCancelled()) {
+            pdfView.onPageSizesMeasured(pdfFile, sizes, batch[0], batch[1]);
+        }
+    }
+}
@@ -17,16 +17,16 @@
  */
 package com.infomaniak.lib.pdfview;
 
-import static com.infomaniak.lib.pdfview.util.Constants.Cache.CACHE_SIZE;
 import static com.infomaniak.lib.pdfview.util.Constants.PRELOAD_OFFSET;
+import static com.infomaniak.lib.pdfview.util.Constants.PROGRESSIVE_PREVIEW_RATIO;
 
 import android.graphics.RectF;
 
 import com.infomaniak.lib.pdfview.RenderingHandler.RenderingSize;
+import com.infomaniak.lib.pdfview.model.TileKey;
 import com.infomaniak.lib.pdfview.util.Constants;
 import com.infomaniak.lib.pdfview.util.MathUtils;
 import com.infomaniak.lib.pdfview.util.Util;
-import com.shockwave.pdfium.util.SizeF;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -41,6 +41,9 @@ class PagesLoader {
     private float pageRelativePartHeight;
     private float partRenderWidth;
     private float partRenderHeight;
+    private int gridRows;
+    private int gridCols;
+    private int partSizeLevel;
     private final RectF thumbnailRect = new RectF(0, 0, 1, 1);
     private final int preloadOffset;
 
@@ -56,6 +59,8 @@ class PagesLoader {
 
     private class RenderRange {
         int page;
+        int partSizeLevel;
+        float partSize;
         GridSize gridSize;
         Holder leftTop;
         Holder rightBottom;
@@ -71,6 +76,8 @@ class PagesLoader {
         public String toString() {
             return "RenderRange{" +
                     "page=" + page +
+                    ", partSizeLevel=" + partSizeLevel +
+                    ", partSize=" + partSize +
                     ", gridSize=" + gridSize +
                     ", leftTop=" + leftTop +
                     ", rightBottom=" + rightBottom +
@@ -93,25 +100,32 @@ class PagesLoader {
         this.preloadOffset = Util.getDP(pdfView.getContext(), PRELOAD_OFFSET);
     }
 
-    void loadPagesForPrinting(int pagesCount) {
-        loadAllForPrinting(pagesCount);
+    /**
+     * @param ratioFactor applied to the printing quality, lower than 1 when the pages didn't fit in the budget
+     */
+    void loadPagesForPrinting(int pagesCount, float ratioFactor) {
+        loadAllForPrinting(pagesCount, ratioFactor);
     }
 
-    private void getPageColsRows(GridSize grid, int pageIndex) {
-        SizeF size = pdfView.pdfFile.getPageSize(pageIndex);
-        float ratioX = 1f / size.getWidth();
-        float ratioY = 1f / size.getHeight();
-        final float partHeight = (Constants.PART_SIZE * ratioY) / pdfView.getZoom();
-        final float partWidth = (Constants.PART_SIZE * ratioX) / pdfView.getZoom();
-        grid.rows = MathUtils.ceil(1f / partHeight);
-        grid.cols = MathUtils.ceil(1f / partWidth);
+    private void getPageColsRows(GridSize grid, int pageIndex, float partSize) {
+        float ratioX = 1f / pdfView.pdfFile.getPageWidth(pageIndex);
+        float ratioY = 1f / pdfView.pdfFile.getPageHeight(pageIndex);
+        // Parts are rendered for the zoom bucket, so that the grid doesn't change with small zoom changes
+        final float partHeight = (partSize * ratioY) / pdfView.getRenderingZoom();
+        final float partWidth = (partSize * ratioX) / pdfView.getRenderingZoom();
+        // Bigger grids can't be told apart by a TileKey, parts get a bit bigger than partSize instead
+        grid.rows = MathUtils.limit(MathUtils.ceil(1f / partHeight), 1, TileKey.MAX_GRID_SIZE);
+        grid.cols = MathUtils.limit(MathUtils.ceil(1f / partWidth), 1, TileKey.MAX_GRID_SIZE);
     }
 
-    private void calculatePartSize(GridSize grid) {
+    private void calculatePartSize(GridSize grid, int partSizeLevel, float partSize) {
+        this.partSizeLevel = partSizeLevel;
+        gridRows = grid.rows;
+        gridCols = grid.cols;
         pageRelativePartWidth = 1f / (float) grid.cols;
         pageRelativePartHeight = 1f / (float) grid.rows;
-        partRenderWidth = Constants.PART_SIZE / pageRelativePartWidth;
-        partRenderHeight = Constants.PART_SIZE / pageRelativePartHeight;
+        partRenderWidth = partSize / pageRelativePartWidth;
+        partRenderHeight = partSize / pageRelativePartHeight;
     }
 
     /**
@@ -147,13 +161,13 @@ class PagesLoader {
                     pageLastYOffset = fixedLastYOffset;
                 } else {
                     float pageOffset = pdfView.pdfFile.getPageOffset(page, pdfView.getZoom());
-                    SizeF pageSize = pdfView.pdfFile.getScaledPageSize(page, pdfView.getZoom());
+                    float pageLength = pdfView.pdfFile.getPageLength(page, pdfView.getZoom());
                     if (pdfView.isSwipeVertical()) {
                         pageLastXOffset = fixedLastXOffset;
-                        pageLastYOffset = pageOffset + pageSize.getHeight();
+                        pageLastYOffset = pageOffset + pageLength;
                     } else {
                         pageLastYOffset = fixedLastYOffset;
-                        pageLastXOffset = pageOffset + pageSize.getWidth();
+                        pageLastXOffset = pageOffset + pageLength;
                     }
                 }
             } else if (page == lastPage) {
@@ -172,26 +186,33 @@ class PagesLoader {
 
             } else {
                 float pageOffset = pdfView.pdfFile.getPageOffset(page, pdfView.getZoom());
-                SizeF pageSize = pdfView.pdfFile.getScaledPageSize(page, pdfView.getZoom());
+                float pageLength = pdfView.pdfFile.getPageLength(page, pdfView.getZoom());
                 if (pdfView.isSwipeVertical()) {
                     pageFirstXOffset = fixedFirstXOffset;
                     pageFirstYOffset = pageOffset;
 
                     pageLastXOffset = fixedLastXOffset;
-                    pageLastYOffset = pageOffset + pageSize.getHeight();
+                    pageLastYOffset = pageOffset + pageLength;
                 } else {
                     pageFirstXOffset = pageOffset;
                     pageFirstYOffset = fixedFirstYOffset;
 
-                    pageLastXOffset = pageOffset + pageSize.getWidth();
+                    pageLastXOffset = pageOffset + pageLength;
                     pageLastYOffset = fixedLastYOffset;
                 }
             }
 
-            getPageColsRows(range.gridSize, range.page); // get the page's grid size that rows and cols
-            SizeF scaledPageSize = pdfView.pdfFile.getScaledPageSize(range.page, pdfView.getZoom());
-            float rowHeight = scaledPageSize.getHeight() / range.gridSize.rows;
-            float colWidth = scaledPageSize.getWidth() / range.gridSize.cols;
+            int previousPartSizeLevel =
+                    pdfView.partSizeManager.getPartSizeLevel(range.page, pdfView.getRenderingZoom());
+            range.partSizeLevel = pdfView.partSizeManager.updatePartSizeLevel(range.page, pdfView.getRenderingZoom());
+            if (range.partSizeLevel != previousPartSizeLevel) {
+                // The render cost of the page changed, its parts of the previous size would stay under the new ones
+                pdfView.cacheManager.dropPageParts(range.page, previousPartSizeLevel);
+            }
+            range.partSize = PartSizeManager.getSize(range.partSizeLevel);
+            getPageColsRows(range.gridSize, range.page, range.partSize); // get the page's grid size that rows and cols
+            float rowHeight = pdfView.pdfFile.getPageHeight(range.page) * pdfView.getZoom() / range.gridSize.rows;
+            float colWidth = pdfView.pdfFile.getPageWidth(range.page) * pdfView.getZoom() / range.gridSize.cols;
 
             // Get the page offset int the whole file
             // ---------------------------------------
@@ -237,40 +258,116 @@ class PagesLoader {
         return renderRanges;
     }
 
-    private void loadAllForPrinting(int pagesCount) {
+    private void loadAllForPrinting(int pagesCount, float ratioFactor) {
+        float printingRatio = getPrintingRatio(pagesCount) * ratioFactor;
         for (int i = 0; i < pagesCount; i++) {
-            loadThumbnail(i, true);
+            if (!pdfView.cacheManager.containsPrintPage(i)) {
+                loadWholePage(i, printingRatio, true);
+            }
         }
     }
 
-    private void loadVisible() {
-        int parts = 0;
+    /**
+     * {@link Constants#THUMBNAIL_RATIO_PRINTING}, or lower if all the pages wouldn't fit in the printing budget
+     */
+    private float getPrintingRatio(int pagesCount) {
+        float pagesArea = 0;
+        for (int i = 0; i < pagesCount; i++) {
+            pagesArea += pdfView.pdfFile.getPageWidth(i) * pdfView.pdfFile.getPageHeight(i);
+        }
+        int bytesPerPixel = pdfView.isRenderingBestQuality() ? 4 : 2;
+        long maxBytes = pdfView.cacheManager.getPrintingMaxBytes();
+        float ratio = Math.min(Constants.THUMBNAIL_RATIO_PRINTING,
+                (float) Math.sqrt(maxBytes / (pagesArea * bytesPerPixel)));
+        // The bitmaps have rounded sizes, which may go over the budget by a few pixels per page
+        while (ratio > 0 && getPrintingBytes(pagesCount, ratio, bytesPerPixel) > maxBytes) {
+            ratio *= 0.99f;
+        }
+        return ratio;
+    }
+
+    /**
+     * @return the bytes of the bitmaps of all the pages rendered for printing with this ratio
+     */
+    private long getPrintingBytes(int pagesCount, float ratio, int bytesPerPixel) {
+        long bytes = 0;
+        for (int i = 0; i < pagesCount; i++) {
+            long width = Math.round(pdfView.pdfFile.getPageWidth(i) * ratio);
+            long height = Math.round(pdfView.pdfFile.getPageHeight(i) * ratio);
+            bytes += width * height * bytesPerPixel;
+        }
+        return bytes;
+    }
+
+    private void loadVisible(boolean withParts) {
         float scaledPreloadOffset = preloadOffset;
         float firstXOffset = -xOffset + scaledPreloadOffset;
         float lastXOffset = -xOffset - pdfView.getWidth() - scaledPreloadOffset;
         float firstYOffset = -yOffset + scaledPreloadOffset;
         float lastYOffset = -yOffset - pdfView.getHeight() - scaledPreloadOffset;
 
+        float partSize = pdfView.partSizeManager.getPartSize(pdfView.getCurrentPage(), pdfView.getRenderingZoom());
+        int maxParts = pdfView.cacheManager.getMaxPartsCount(partSize, pdfView.isRenderingBestQuality());
+        int parts = loadArea(firstXOffset, firstYOffset, lastXOffset, lastYOffset, withParts, maxParts);
+
+        // Then the prefetch window ahead, with what is left of the parts budget
+        float prefetchDistance = withParts ? pdfView.getPrefetchDistance() : 0;
+        if (prefetchDistance <= 0 || parts >= maxParts) {
+            return;
+        }
+        boolean forward = pdfView.getPrefetchDir() == PDFView.ScrollDir.END;
+        if (pdfView.isSwipeVertical()) {
+            if (forward) {
+                firstYOffset = lastYOffset;
+                lastYOffset -= prefetchDistance;
+            } else {
+                lastYOffset = firstYOffset;
+                firstYOffset += prefetchDistance;
+            }
+        } else {
+            if (forward) {
+                firstXOffset = lastXOffset;
+                lastXOffset -= prefetchDistance;
+            } else {
+                lastXOffset = firstXOffset;
+                firstXOffset += prefetchDistance;
+            }
+        }
+        loadArea(firstXOffset, firstYOffset, lastXOffset, lastYOffset, true, maxParts - parts);
+    }
+
+    /**
+     * Load the thumbnails, and the parts if asked, of the area between the offsets
+     *
+     * @return the number of parts loaded
+     */
+    private int loadArea(float firstXOffset, float firstYOffset, float lastXOffset, float lastYOffset,
+                         boolean withParts, int maxParts) {
         List<RenderRange> rangeList = getRenderRangeList(firstXOffset, firstYOffset, lastXOffset, lastYOffset);
 
         for (RenderRange range : rangeList) {
-            loadThumbnail(range.page, false);
+            loadThumbnail(range.page);
+        }
+        if (!withParts) {
+            return 0;
         }
 
+        int parts = 0;
         for (RenderRange range : rangeList) {
-            calculatePartSize(range.gridSize);
+            calculatePartSize(range.gridSize, range.partSizeLevel, range.partSize);
             parts += loadPage(
                     range.page,
                     range.leftTop.row,
                     range.rightBottom.row,
                     range.leftTop.col,
                     range.rightBottom.col,
-                    CACHE_SIZE - parts
+                    maxParts - parts
             );
-            if (parts >= CACHE_SIZE) {
+            if (parts >= maxParts) {
                 break;
             }
         }
+        return parts;
     }
 
     private int loadPage(int page, int firstRow, int lastRow, int firstCol, int lastCol, int nbOfPartsLoadable) {
@@ -308,14 +405,20 @@ class PagesLoader {
         RectF pageRelativeBounds = new RectF(relX, relY, relX + relWidth, relY + relHeight);
 
         if (renderWidth > 0 && renderHeight > 0) {
-            if (!pdfView.cacheManager.upPartIfContained(page, pageRelativeBounds, cacheOrder)) {
-                pdfView.renderingHandler.addRenderingTask(
+            long key = TileKey.of(page, partSizeLevel, gridRows, gridCols, row, col);
+            if (!pdfView.cacheManager.upPartIfContained(key, cacheOrder)) {
+                if (pdfView.isProgressiveRendering()) {
+                    loadPreview(page, row, col);
+                }
+                pdfView.renderingEngine.addRenderingTask(
                         page,
+                        key,
                         new RenderingSize(renderWidth, renderHeight, pageRelativeBounds),
                         false,
                         cacheOrder,
-                        pdfView.isBestQuality(),
+                        pdfView.isRenderingBestQuality(),
                         pdfView.isAnnotationRendering(),
+                        false,
                         false
                 );
             }
@@ -326,31 +429,84 @@ class PagesLoader {
         return false;
     }
 
-    private void loadThumbnail(int page, boolean isForPrinting) {
-        SizeF pageSize = pdfView.pdfFile.getPageSize(page);
-        float thumbnailRatio = isForPrinting ? Constants.THUMBNAIL_RATIO_PRINTING : pdfView.getThumbnailRatio();
-        float thumbnailWidth = pageSize.getWidth() * thumbnailRatio;
-        float thumbnailHeight = pageSize.getHeight() * thumbnailRatio;
-        if (!pdfView.cacheManager.containsThumbnail(page, thumbnailRect)) {
-            pdfView.renderingHandler.addRenderingTask(
-                    page,
-                    new RenderingSize(thumbnailWidth, thumbnailHeight, thumbnailRect),
-                    true,
-                    0,
-                    pdfView.isBestQuality(),
-                    pdfView.isAnnotationRendering(),
-                    isForPrinting
-            );
-        } else if (page == pdfView.getPageCount() - 1 && isForPrinting) {
-            pdfView.callbacks.callsOnReadyForPrinting(pdfView.getPagesAsBitmaps());
+    /**
+     * Load the part of a coarser grid covering the cell, at the same part size so at a lower resolution, and without
+     * annotations. It's cheap to render and shown until the part of the cell is rendered.
+     */
+    private void loadPreview(int page, int row, int col) {
+        int previewRows = MathUtils.ceil(gridRows * PROGRESSIVE_PREVIEW_RATIO);
+        int previewCols = MathUtils.ceil(gridCols * PROGRESSIVE_PREVIEW_RATIO);
+        if (previewRows == gridRows && previewCols == gridCols) {
+            // The thumbnail is as good
+            return;
+        }
+        int previewRow = row * previewRows / gridRows;
+        int previewCol = col * previewCols / gridCols;
+        long key = TileKey.of(page, partSizeLevel, previewRows, previewCols, previewRow, previewCol);
+        if (pdfView.cacheManager.upPartIfContained(key, cacheOrder, true)) {
+            return;
+        }
+
+        float relWidth = 1f / previewCols;
+        float relHeight = 1f / previewRows;
+        float relX = relWidth * previewCol;
+        float relY = relHeight * previewRow;
+        relWidth = Math.min(relWidth, 1 - relX);
+        relHeight = Math.min(relHeight, 1 - relY);
+        float partSize = partRenderWidth * pageRelativePartWidth;
+        float renderWidth = partSize * previewCols * relWidth;
+        float renderHeight = partSize * previewRows * relHeight;
+        if (renderWidth <= 0 || renderHeight <= 0) {
+            return;
         }
+        pdfView.renderingEngine.addRenderingTask(
+                page,
+                key,
+                new RenderingSize(renderWidth, renderHeight, new RectF(relX, relY, relX + relWidth, relY + relHeight)),
+                false,
+                cacheOrder,
+                pdfView.isRenderingBestQuality(),
+                false,
+                false,
+                true
+        );
+    }
+
+    private void loadThumbnail(int page) {
+        if (!pdfView.cacheManager.containsThumbnail(page)) {
+            loadWholePage(page, pdfView.getRenderingThumbnailRatio(), false);
+        }
+    }
+
+    private void loadWholePage(int page, float ratio, boolean isForPrinting) {
+        float width = pdfView.pdfFile.getPageWidth(page) * ratio;
+        float height = pdfView.pdfFile.getPageHeight(page) * ratio;
+        pdfView.renderingEngine.addRenderingTask(
+                page,
+                TileKey.thumbnail(page),
+                new RenderingSize(width, height, thumbnailRect),
+                true,
+                0,
+                pdfView.isRenderingBestQuality(),
+                pdfView.isAnnotationRendering(),
+                isForPrinting,
+                false
+        );
     }
 
     void loadPages() {
         cacheOrder = 1;
-        xOffset = -MathUtils.max(pdfView.getCurrentXOffset(), 0);
-        yOffset = -MathUtils.max(pdfView.getCurrentYOffset(), 0);
+        setOffsets(pdfView.getCurrentXOffset(), pdfView.getCurrentYOffset());
+        if (pdfView.hasFlingDestination()) {
+            // Only the thumbnails of the pages the fling goes through, the parts are for where it stops
+            loadVisible(false);
+            setOffsets(pdfView.getFlingDestinationX(), pdfView.getFlingDestinationY());
+        }
+        loadVisible(true);
+    }
 
-        loadVisible();
+    private void setOffsets(float currentXOffset, float currentYOffset) {
+        xOffset = -MathUtils.max(currentXOffset, 0);
+        yOffset = -MathUtils.max(currentYOffset, 0);
     }
 }
@@ -0,0 +1,165 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static com.infomaniak.lib.pdfview.util.Constants.MAX_PART_SIZE;
+import static com.infomaniak.lib.pdfview.util.Constants.MIN_PART_SIZE;
+import static com.infomaniak.lib.pdfview.util.Constants.PART_RENDER_TARGET_NANOS;
+import static com.infomaniak.lib.pdfview.util.Constants.PART_SIZE;
+
+import com.infomaniak.lib.pdfview.util.Constants;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the size of the rendered parts of each page, among {@link Constants#MIN_PART_SIZE},
+ * {@link Constants#PART_SIZE} and {@link Constants#MAX_PART_SIZE}.
+ * <p>
+ * The rendering workers report how long pdfium takes per pixel on each page. Pages which render fast, like text, get
+ * bigger parts, so fewer parts to render, cache and draw. Pages which render slowly, like scans, get smaller parts,
+ * so that the first ones show up sooner. The part should take about {@code PART_RENDER_TARGET_NANOS} to render.
+ * <p>
+ * The size of a page changes along with the zoom bucket, see {@link PDFView#getRenderingZoom()}, whose grid changes
+ * anyway, or when its render cost leaves the band of its size, see {@link #updatePartSizeLevel(int, float)}. It
+ * changes by one step at a time, and sizes between two steps keep the current one, so that cached parts stay reusable
+ * while the user scrolls. Dense screens never get the smallest parts, which would be tiny on screen.
+ * <p>
+ * Thread safe: costs are reported from the rendering threads, sizes are read on the UI thread.
+ */
+final class PartSizeManager {
+
+    private static final float[] SIZES = {MIN_PART_SIZE, PART_SIZE, MAX_PART_SIZE};
+
+    private static final int DEFAULT_LEVEL = 1;
+
+    /**
+     * Screen density from which the smallest parts are not used
+     */
+    private static final float HIGH_DENSITY = 2.5f;
+
+    /**
+     * Weight of the last measurement in the rolling render cost
+     */
+    private static final float COST_SMOOTHING = 0.3f;
+
+    private final int minLevel;
+
+    /**
+     * Rolling render cost of each page, in nanoseconds per pixel, 0 if unknown
+     */
+    private final float[] costs;
+
+    /**
+     * Index in {@link #SIZES} of each page, -1 if not chosen yet
+     */
+    private final int[] levels;
+
+    /**
+     * Zoom for which the size of each page was chosen
+     */
+    private final float[] levelZooms;
+
+    /**
+     * Whether the render cost of each page left the band of its size since it was chosen
+     */
+    private final boolean[] outdatedLevels;
+
+    PartSizeManager(int pagesCount, float density) {
+        minLevel = density >= HIGH_DENSITY ? DEFAULT_LEVEL : 0;
+        costs = new float[pagesCount];
+        levels = new int[pagesCount];
+        levelZooms = new float[pagesCount];
+        outdatedLevels = new boolean[pagesCount];
+        Arrays.fill(levels, -1);
+    }
+
+    /**
+     * @return the size, in pixels, of the parts of this page at this zoom
+     */
+    float getPartSize(int page, float zoom) {
+        return getSize(getPartSizeLevel(page, zoom));
+    }
+
+    /**
+     * @return the level of the size of the parts of this page at this zoom, which is part of their
+     * {@link com.infomaniak.lib.pdfview.model.TileKey}
+     */
+    synchronized int getPartSizeLevel(int page, float zoom) {
+        if (page < 0 || page >= levels.length) {
+            return DEFAULT_LEVEL;
+        }
+        if (levels[page] < 0 || levelZooms[page] != zoom) {
+            levels[page] = chooseLevel(page);
+            levelZooms[page] = zoom;
+            outdatedLevels[page] = false;
+        }
+        return levels[page];
+    }
+
+    /**
+     * Choose the size of the parts of this page again if its render cost left the band of its size since it was
+     * chosen. The cached parts of the previous size are then to be dropped by the caller.
+     *
+     * @return the level of the size of the parts of this page at this zoom, like {@link #getPartSizeLevel}
+     */
+    synchronized int updatePartSizeLevel(int page, float zoom) {
+        if (page >= 0 && page < levels.length && levels[page] >= 0 && outdatedLevels[page]) {
+            levels[page] = chooseLevel(page);
+            outdatedLevels[page] = false;
+        }
+        return getPartSizeLevel(page, zoom);
+    }
+
+    /**
+     * @return the size, in pixels, of the parts of this level
+     */
+    static float getSize(int level) {
+        return SIZES[level];
+    }
+
+    /**
+     * Report how long pdfium took to render part of a page
+     */
+    synchronized void onPageRendered(int page, long nanos, long pixels) {
+        if (page < 0 || page >= costs.length || pixels <= 0) {
+            return;
+        }
+        float cost = nanos / (float) pixels;
+        costs[page] = costs[page] == 0 ? cost : costs[page] + COST_SMOOTHING * (cost - costs[page]);
+        if (levels[page] >= 0 && chooseLevel(page) != levels[page]) {
+            outdatedLevels[page] = true;
+        }
+    }
+
+    /**
+     * Move one step towards the size rendered in {@code PART_RENDER_TARGET_NANOS}. Sizes between two steps keep the
+     * current one, so that the size doesn't switch back and forth around a step.
+     */
+    private int chooseLevel(int page) {
+        int level = levels[page] < 0 ? DEFAULT_LEVEL : levels[page];
+        if (costs[page] > 0) {
+            float idealSize = (float) Math.sqrt(PART_RENDER_TARGET_NANOS / costs[page]);
+            if (level + 1 < SIZES.length && idealSize >= SIZES[level + 1]) {
+                level++;
+            } else if (level > 0 && idealSize <= SIZES[level - 1]) {
+                level--;
+            }
+        }
+        return Math.max(minLevel, level);
+    }
+}
@@ -15,10 +15,17 @@
  */
 package com.infomaniak.lib.pdfview;
 
+import static com.infomaniak.lib.pdfview.util.Constants.LazyLayout.EXACT_PAGES;
+import static com.infomaniak.lib.pdfview.util.Constants.LazyLayout.MIN_PAGES;
+import static com.infomaniak.lib.pdfview.util.Constants.LazyLayout.SAMPLED_PAGES;
+
 import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import androidx.annotation.Nullable;
 
 import com.infomaniak.lib.pdfview.exception.PageRenderingException;
 import com.infomaniak.lib.pdfview.util.PageSizeCalculator;
@@ -29,54 +36,58 @@ import com.shockwave.pdfium.util.SizeF;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A loaded document with its layout.
+ * <p>
+ * Concurrency: the layout is computed on the loading thread, then only used from the UI thread. After a view size
+ * change, the layout is scaled at once on the UI thread, then a new {@link Layout} is computed on a background thread
+ * by a {@link LayoutTask} and swapped in on the UI thread. In lazy mode, the page sizes not known yet are measured on a background thread, then applied to the layout
+ * on the UI thread.
+ * <p>
+ * The pdfium documents are wrapped in {@link DocumentHandle}s, each one guarding its opened pages with its own lock, so
+ * that opening a page never waits for another document, nor for another view. pdfium itself isn't thread safe: the
+ * binding serializes all its native calls, which is the only lock shared by the documents of the process. The UI
+ * reads the main document under the lock of its handle, so that the first rendering worker can replace it.
+ */
 class PdfFile {
 
-    private static final Object lock = new Object();
-
     private PdfDocument pdfDocument;
     private PdfiumCore pdfiumCore;
     private int pagesCount = 0;
     /**
-     * Original page sizes
-     */
-    private List<Size> originalPageSizes = new ArrayList<>();
-    /**
-     * Scaled page sizes
+     * Original page sizes, estimated for the pages out of [exactPagesFrom, exactPagesTo) until they're measured
      */
-    private List<SizeF> pageSizes = new ArrayList<>();
+    private Size[] originalPageSizes = new Size[0];
+    private int exactPagesFrom;
+    private int exactPagesTo;
     /**
-     * Opened pages with indicator whether opening was successful
+     * Scaled page sizes and offsets for the current view size, replaced as a whole
      */
-    private SparseBooleanArray openedPages = new SparseBooleanArray();
-    /**
-     * Page with maximum width
-     */
-    private Size originalMaxWidthPageSize = new Size(0, 0);
-    /**
-     * Page with maximum height
-     */
-    private Size originalMaxHeightPageSize = new Size(0, 0);
+    private Layout layout;
     /**
-     * Scaled page with maximum height
+     * Incremented each time the layout is replaced, so that a layout computed in the background for older page
+     * sizes is ignored, see {@link #setLayout(Layout, int)}
      */
-    private SizeF maxHeightPageSize = new SizeF(0, 0);
+    private int layoutVersion;
     /**
-     * Scaled page with maximum width
+     * Handle on the document used by the UI and the first rendering worker
      */
-    private SizeF maxWidthPageSize = new SizeF(0, 0);
+    private final DocumentHandle mainHandle;
     /**
-     * Calculated offsets for pages
+     * Pages opened in all the handles, and pages closed with their handle, for monitoring
      */
-    private List<Float> pageOffsets = new ArrayList<>();
+    private final AtomicInteger openedPagesCount = new AtomicInteger();
+    private final AtomicInteger closedPagesCount = new AtomicInteger();
     /**
-     * Calculated auto spacing for pages
+     * Page with maximum width
      */
-    private List<Float> pageSpacing = new ArrayList<>();
+    private Size originalMaxWidthPageSize = new Size(0, 0);
     /**
-     * Calculated document length (width or height, depending on swipe mode)
+     * Page with maximum height
      */
-    private float documentLength = 0;
+    private Size originalMaxHeightPageSize = new Size(0, 0);
 
     /**
      * The pages the user want to display in order
@@ -84,48 +95,215 @@ class PdfFile {
      */
     private int[] originalUserPages;
     private DisplayOptions displayOptions;
+    /**
+     * Hash of the fingerprint of the document source, null if the document can't be identified
+     */
+    private final String fingerprint;
 
     PdfFile(
             PdfiumCore pdfiumCore,
             PdfDocument pdfDocument,
             int[] originalUserPages,
-            DisplayOptions displayOptions
+            DisplayOptions displayOptions,
+            String fingerprint,
+            @Nullable int[] cachedPageSizes,
+            boolean lazyPageSizes,
+            int firstPage
     ) {
         this.pdfiumCore = pdfiumCore;
         this.pdfDocument = pdfDocument;
         this.originalUserPages = originalUserPages;
         this.displayOptions = displayOptions;
-        setup(this.displayOptions.getViewSize());
+        this.fingerprint = fingerprint;
+        this.mainHandle = new DocumentHandle(pdfDocument);
+        setup(this.displayOptions.getViewSize(), cachedPageSizes, lazyPageSizes, firstPage);
     }
 
-    private void setup(Size viewSize) {
+    /**
+     * Page sizes are taken from the layout cache when known. Otherwise in lazy mode, only the pages around the first
+     * page are measured, the others get an estimated size until {@link #setMeasuredPageSize} is called for them.
+     *
+     * @param cachedPageSizes width then height of each page of the document, see {@link LayoutCache}
+     */
+    private void setup(Size viewSize, @Nullable int[] cachedPageSizes, boolean lazyPageSizes, int firstPage) {
         if (originalUserPages != null) {
             pagesCount = originalUserPages.length;
         } else {
             pagesCount = pdfiumCore.getPageCount(pdfDocument);
         }
 
+        originalPageSizes = new Size[pagesCount];
+        if (cachedPageSizes != null) {
+            exactPagesFrom = 0;
+            exactPagesTo = pagesCount;
+            for (int i = 0; i < pagesCount; i++) {
+                int docPage = documentPage(i);
+                Size pageSize = docPage >= 0 && 2 * docPage + 1 < cachedPageSizes.length
+                        ? new Size(cachedPageSizes[2 * docPage], cachedPageSizes[2 * docPage + 1])
+                        : pdfiumCore.getPageSize(pdfDocument, docPage);
+                updateMaxPageSizes(pageSize);
+                originalPageSizes[i] = pageSize;
+            }
+            recalculatePageSizes(viewSize);
+            return;
+        }
+
+        if (lazyPageSizes && pagesCount > MIN_PAGES) {
+            exactPagesFrom = Math.max(0, Math.min(firstPage, pagesCount - EXACT_PAGES / 2) - EXACT_PAGES / 2);
+            exactPagesTo = Math.min(pagesCount, exactPagesFrom + EXACT_PAGES);
+        } else {
+            exactPagesFrom = 0;
+            exactPagesTo = pagesCount;
+        }
+
+        Size estimatedSize = exactPagesTo - exactPagesFrom < pagesCount ? estimatePageSize() : null;
         for (int i = 0; i < pagesCount; i++) {
-            Size pageSize = pdfiumCore.getPageSize(pdfDocument, documentPage(i));
-            if (pageSize.getWidth() > originalMaxWidthPageSize.getWidth()) {
-                originalMaxWidthPageSize = pageSize;
+            Size pageSize = i >= exactPagesFrom && i < exactPagesTo
+                    ? pdfiumCore.getPageSize(pdfDocument, documentPage(i))
+                    : estimatedSize;
+            updateMaxPageSizes(pageSize);
+            originalPageSizes[i] = pageSize;
+        }
+
+        recalculatePageSizes(viewSize);
+    }
+
+    /**
+     * @return the most common size among pages spread across the document
+     */
+    private Size estimatePageSize() {
+        Size[] samples = new Size[Math.min(SAMPLED_PAGES, pagesCount)];
+        for (int i = 0; i < samples.length; i++) {
+            int pageIndex = (int) ((long) i * pagesCount / samples.length);
+            samples[i] = pdfiumCore.getPageSize(pdfDocument, documentPage(pageIndex));
+            updateMaxPageSizes(samples[i]);
+        }
+        Size estimatedSize = samples[0];
+        int estimatedSizeCount = 0;
+        for (Size sample : samples) {
+            int count = 0;
+            for (Size other : samples) {
+                if (isSameSize(sample, other)) {
+                    count++;
+                }
             }
-            if (pageSize.getHeight() > originalMaxHeightPageSize.getHeight()) {
-                originalMaxHeightPageSize = pageSize;
+            if (count > estimatedSizeCount) {
+                estimatedSize = sample;
+                estimatedSizeCount = count;
             }
-            originalPageSizes.add(pageSize);
         }
+        return estimatedSize;
+    }
 
-        recalculatePageSizes(viewSize);
+    private void updateMaxPageSizes(Size pageSize) {
+        if (pageSize.getWidth() > originalMaxWidthPageSize.getWidth()) {
+            originalMaxWidthPageSize = pageSize;
+        }
+        if (pageSize.getHeight() > originalMaxHeightPageSize.getHeight()) {
+            originalMaxHeightPageSize = pageSize;
+        }
+    }
+
+    private static boolean isSameSize(Size first, Size second) {
+        return first.getWidth() == second.getWidth() && first.getHeight() == second.getHeight();
+    }
+
+    /**
+     * @return true if some page sizes are only estimated, see {@link #measurePageSize}
+     */
+    boolean hasEstimatedPageSizes() {
+        return exactPagesTo - exactPagesFrom < pagesCount;
+    }
+
+    /**
+     * @return true if the page sizes can be saved to the layout cache: the document has a fingerprint and all its
+     * pages are shown, so that the sizes of all of them are known
+     */
+    boolean isLayoutCacheable() {
+        return fingerprint != null && originalUserPages == null;
+    }
+
+    /**
+     * @return the width then the height of each page, to be saved to the layout cache. Only valid when the sizes
+     * aren't estimated, and the pages are the ones of the document, see {@link #isLayoutCacheable()}.
+     */
+    int[] getOriginalPageSizes() {
+        int[] sizes = new int[2 * pagesCount];
+        for (int i = 0; i < pagesCount; i++) {
+            sizes[2 * i] = originalPageSizes[i].getWidth();
+            sizes[2 * i + 1] = originalPageSizes[i].getHeight();
+        }
+        return sizes;
+    }
+
+    /**
+     * First of the pages measured before the document is shown
+     */
+    int getExactPagesFrom() {
+        return exactPagesFrom;
     }
 
     /**
-     * Call after view size change to recalculate page sizes, offsets and document length
+     * End, exclusive, of the pages measured before the document is shown
+     */
+    int getExactPagesTo() {
+        return exactPagesTo;
+    }
+
+    /**
+     * Ask pdfium for the original size of a page. Can be called from any thread.
+     *
+     * @return the size, or null if the document was disposed
+     */
+    @Nullable
+    Size measurePageSize(int pageIndex) {
+        synchronized (mainHandle.lock) {
+            if (pdfDocument == null) {
+                return null;
+            }
+            return pdfiumCore.getPageSize(pdfDocument, documentPage(pageIndex));
+        }
+    }
+
+    /**
+     * Replace the estimated size of a page by its measured one. The layout is updated by a {@link LayoutTask} created
+     * after this call, the ones created before are outdated.
+     *
+     * @return true if the size of the page changed
+     */
+    boolean setMeasuredPageSize(int pageIndex, Size pageSize) {
+        if (isSameSize(originalPageSizes[pageIndex], pageSize)) {
+            return false;
+        }
+        originalPageSizes[pageIndex] = pageSize;
+        updateMaxPageSizes(pageSize);
+        layoutVersion++;
+        return true;
+    }
+
+    /**
+     * Call after view size change to recalculate page sizes, offsets and document length.
+     * See {@link #newLayoutTask} to recalculate them in the background instead.
      *
      * @param viewSize new size of changed view
      */
     public void recalculatePageSizes(Size viewSize) {
-        pageSizes.clear();
+        layout = new Layout(displayOptions, originalPageSizes, originalMaxWidthPageSize, originalMaxHeightPageSize,
+                viewSize);
+        layoutVersion++;
+    }
+
+    /**
+     * Scale the whole layout like the given page for a new view size, without going through the pages, until the
+     * layout computed by a {@link LayoutTask} replaces it. Must be called on the UI thread.
+     *
+     * @param pageIndex page to size exactly, the one at the center of the view
+     */
+    void scaleLayout(Size viewSize, int pageIndex) {
+        float pageWidth = layout.pageWidths[pageIndex] * layout.scale;
+        if (pageWidth <= 0) {
+            return;
+        }
         PageSizeCalculator calculator = new PageSizeCalculator(
                 displayOptions.getPageFitPolicy(),
                 originalMaxWidthPageSize,
@@ -133,34 +311,57 @@ class PdfFile {
                 viewSize,
                 displayOptions.getFitEachPage()
         );
-        maxWidthPageSize = calculator.getOptimalMaxWidthPageSize();
-        maxHeightPageSize = calculator.getOptimalMaxHeightPageSize();
+        layout = layout.scaled(calculator.calculate(originalPageSizes[pageIndex]).getWidth() / pageWidth);
+    }
 
-        for (Size size : originalPageSizes) {
-            pageSizes.add(calculator.calculate(size));
-        }
-        if (displayOptions.getPdfSpacing().getAutoSpacing()) {
-            prepareAutoSpacing(viewSize);
+    /**
+     * Capture what the layout depends on, so that it can be computed for a new view size on a background thread.
+     * Must be called on the UI thread.
+     */
+    LayoutTask newLayoutTask(Size viewSize) {
+        return new LayoutTask(viewSize);
+    }
+
+    /**
+     * Replace the layout by one computed by a {@link LayoutTask}. Must be called on the UI thread.
+     *
+     * @param version version of the task, the layout is ignored if the page sizes changed since it was created
+     */
+    void setLayout(Layout layout, int version) {
+        if (version == layoutVersion) {
+            this.layout = layout;
         }
-        prepareDocLen();
-        preparePagesOffset();
+    }
+
+    int getLayoutVersion() {
+        return layoutVersion;
     }
 
     public int getPagesCount() {
         return pagesCount;
     }
 
+    /**
+     * Allocates the returned size, see {@link #getPageWidth(int)} and {@link #getPageHeight(int)} to avoid it
+     */
     public SizeF getPageSize(int pageIndex) {
         int docPage = documentPage(pageIndex);
         if (docPage < 0) {
             return new SizeF(0, 0);
         }
-        return pageSizes.get(pageIndex);
+        return new SizeF(layout.pageWidths[pageIndex] * layout.scale, layout.pageHeights[pageIndex] * layout.scale);
+    }
+
+    public float getPageWidth(int pageIndex) {
+        return documentPage(pageIndex) < 0 ? 0 : layout.pageWidths[pageIndex] * layout.scale;
+    }
+
+    public float getPageHeight(int pageIndex) {
+        return documentPage(pageIndex) < 0 ? 0 : layout.pageHeights[pageIndex] * layout.scale;
     }
 
     public SizeF getScaledPageSize(int pageIndex, float zoom) {
-        SizeF size = getPageSize(pageIndex);
-        return new SizeF(size.getWidth() * zoom, size.getHeight() * zoom);
+        return new SizeF(getPageWidth(pageIndex) * zoom, getPageHeight(pageIndex) * zoom);
     }
 
     /**
@@ -169,7 +370,7 @@ class PdfFile {
      * @return size of page
      */
     public SizeF getMaxPageSize() {
-        return displayOptions.isVertical() ? maxWidthPageSize : maxHeightPageSize;
+        return displayOptions.isVertical() ? layout.maxWidthPageSize : layout.maxHeightPageSize;
     }
 
     public float getMaxPageWidth() {
@@ -180,81 +381,19 @@ class PdfFile {
         return getMaxPageSize().getHeight();
     }
 
-    private void prepareAutoSpacing(Size viewSize) {
-        pageSpacing.clear();
-        for (int i = 0; i < getPagesCount(); i++) {
-            SizeF pageSize = pageSizes.get(i);
-            float spacing = Math.max(0, displayOptions.isVertical() ? viewSize.getHeight() - pageSize.getHeight() :
-                    viewSize.getWidth() - pageSize.getWidth());
-            if (i < getPagesCount() - 1) {
-                spacing += displayOptions.getPdfSpacing().getPageSeparatorSpacing();
-            }
-            pageSpacing.add(spacing);
-        }
-    }
-
-    private void prepareDocLen() {
-        float length = 0;
-        for (int i = 0; i < getPagesCount(); i++) {
-            SizeF pageSize = pageSizes.get(i);
-            length += displayOptions.isVertical() ? pageSize.getHeight() : pageSize.getWidth();
-            if (displayOptions.getPdfSpacing().getAutoSpacing()) {
-                length += pageSpacing.get(i);
-            } else if (i < getPagesCount() - 1) {
-                length += displayOptions.getPdfSpacing().getPageSeparatorSpacing();
-            }
-        }
-        documentLength =
-                length + displayOptions.getPdfSpacing().getStartSpacing() + displayOptions.getPdfSpacing().getEndSpacing();
-    }
-
-    private void preparePagesOffset() {
-        pageOffsets.clear();
-        float offset = 0;
-        for (int i = 0; i < getPagesCount(); i++) {
-            SizeF pageSize = pageSizes.get(i);
-            float size = displayOptions.isVertical() ? pageSize.getHeight() : pageSize.getWidth();
-            if (displayOptions.getPdfSpacing().getAutoSpacing()) {
-                offset += pageSpacing.get(i) / 2f;
-                if (i == 0) {
-                    offset -= displayOptions.getPdfSpacing().getPageSeparatorSpacing() / 2f;
-                } else if (i == getPagesCount() - 1) {
-                    offset += displayOptions.getPdfSpacing().getPageSeparatorSpacing() / 2f;
-                }
-                pageOffsets.add(offset);
-                offset += size + pageSpacing.get(i) / 2f;
-            } else {
-                // Adding a space at the beginning to be able to zoom out with a space between the top of the screen
-                // and the first page of the PDF
-                if (i == 0) {
-                    offset += displayOptions.getPdfSpacing().getStartSpacing();
-                }
-                pageOffsets.add(offset);
-                offset += size + displayOptions.getPdfSpacing().getPageSeparatorSpacing();
-            }
-        }
-    }
-
     public float getDocLen(float zoom) {
-        return documentLength * zoom;
+        return layout.documentLength * zoom;
     }
 
     /**
      * Get the page's height if swiping vertical, or width if swiping horizontal.
      */
     public float getPageLength(int pageIndex, float zoom) {
-        SizeF size = getPageSize(pageIndex);
-        return (displayOptions.isVertical() ? size.getHeight() : size.getWidth()) * zoom;
+        return (displayOptions.isVertical() ? getPageHeight(pageIndex) : getPageWidth(pageIndex)) * zoom;
     }
 
     public float getPageSpacing(int pageIndex, float zoom) {
-        float spacing;
-        if (displayOptions.getPdfSpacing().getAutoSpacing()) {
-            spacing = pageSpacing.get(pageIndex);
-        } else {
-            spacing = displayOptions.getPdfSpacing().getPageSeparatorSpacing();
-        }
-        return spacing * zoom;
+        return layout.pageSpacing[pageIndex] * layout.scale * zoom;
     }
 
     /**
@@ -265,99 +404,478 @@ class PdfFile {
         if (docPage < 0) {
             return 0;
         }
-        return pageOffsets.get(pageIndex) * zoom;
+        return layout.pageOffsets[pageIndex] * layout.scale * zoom;
     }
 
     /**
      * Get secondary page offset, that is X for vertical scroll and Y for horizontal scroll
      */
     public float getSecondaryPageOffset(int pageIndex, float zoom) {
-        SizeF pageSize = getPageSize(pageIndex);
-        if (displayOptions.isVertical()) {
-            float maxWidth = getMaxPageWidth();
-            return zoom * (maxWidth - pageSize.getWidth()) / 2; //x
-        } else {
-            float maxHeight = getMaxPageHeight();
-            return zoom * (maxHeight - pageSize.getHeight()) / 2; //y
+        if (documentPage(pageIndex) < 0) {
+            return zoom * (displayOptions.isVertical() ? getMaxPageWidth() : getMaxPageHeight()) / 2;
         }
+        return zoom * layout.scale * layout.secondaryPageOffsets[pageIndex];
     }
 
+    /**
+     * @return the last page starting before the offset, the page separator spacing being shared by the pages around
+     * it
+     */
     public int getPageAtOffset(float offset, float zoom) {
-        int currentPage = 0;
-        for (int i = 0; i < getPagesCount(); i++) {
-            float off = pageOffsets.get(i) * zoom - getPageSpacing(i, zoom) / 2f;
-            if (off >= offset) {
-                break;
-            }
-            currentPage++;
+        return layout.getPageAtOffset(offset, zoom);
+    }
+
+    /**
+     * Computes the layout for a new view size on a background thread, from what it depends on when it was created.
+     * Meanwhile, the view is drawn with the layout scaled by {@link #scaleLayout}.
+     */
+    final class LayoutTask {
+
+        private final Size viewSize;
+        private final int version = layoutVersion;
+        private final Size[] originalPageSizes = PdfFile.this.originalPageSizes.clone();
+        private final Size originalMaxWidthPageSize = PdfFile.this.originalMaxWidthPageSize;
+        private final Size originalMaxHeightPageSize = PdfFile.this.originalMaxHeightPageSize;
+
+        private LayoutTask(Size viewSize) {
+            this.viewSize = viewSize;
+        }
+
+        Layout compute() {
+            return new Layout(displayOptions, originalPageSizes, originalMaxWidthPageSize, originalMaxHeightPageSize,
+                    viewSize);
+        }
+
+        int getVersion() {
+            return version;
         }
-        return --currentPage >= 0 ? currentPage : 0;
     }
 
-    public boolean openPage(int pageIndex) throws PageRenderingException {
-        int docPage = documentPage(pageIndex);
-        if (docPage < 0) {
-            return false;
+    /**
+     * Scaled page sizes and offsets for one view size. Never modified once built, so that it can be built on a
+     * background thread and swapped in at once on the UI thread.
+     */
+    static final class Layout {
+        /**
+         * Factor of the page sizes, offsets and spacings below, 1 unless scaled from another layout by
+         * {@link #scaled(float)} which shares its arrays
+         */
+        final float scale;
+        /**
+         * Scaled page sizes
+         */
+        final float[] pageWidths;
+        final float[] pageHeights;
+        /**
+         * Scaled page with maximum height, {@link #scale} included
+         */
+        final SizeF maxHeightPageSize;
+        /**
+         * Scaled page with maximum width, {@link #scale} included
+         */
+        final SizeF maxWidthPageSize;
+        /**
+         * Calculated offsets for pages, that is the sum of the lengths and spacings of the previous pages
+         */
+        final float[] pageOffsets;
+        /**
+         * Calculated spacing after each page, the auto spacing or the page separator spacing
+         */
+        final float[] pageSpacing;
+        /**
+         * Offset from which each page is the current one, in increasing order, see {@link #getPageAtOffset}
+         */
+        final float[] pageStarts;
+        /**
+         * Calculated secondary offsets for pages, to center them on the widest or highest page
+         */
+        final float[] secondaryPageOffsets;
+        /**
+         * Calculated document length (width or height, depending on swipe mode), {@link #scale} included
+         */
+        final float documentLength;
+
+        Layout(
+                DisplayOptions displayOptions,
+                Size[] originalPageSizes,
+                Size originalMaxWidthPageSize,
+                Size originalMaxHeightPageSize,
+                Size viewSize
+        ) {
+            int pagesCount = originalPageSizes.length;
+            PageSizeCalculator calculator = new PageSizeCalculator(
+                    displayOptions.getPageFitPolicy(),
+                    originalMaxWidthPageSize,
+                    originalMaxHeightPageSize,
+                    viewSize,
+                    displayOptions.getFitEachPage()
+            );
+            maxWidthPageSize = calculator.getOptimalMaxWidthPageSize();
+            maxHeightPageSize = calculator.getOptimalMaxHeightPageSize();
+
+            pageWidths = new float[pagesCount];
+            pageHeights = new float[pagesCount];
+            pageOffsets = new float[pagesCount];
+            pageSpacing = new float[pagesCount];
+            pageStarts = new float[pagesCount];
+            secondaryPageOffsets = new float[pagesCount];
+
+            for (int i = 0; i < pagesCount; i++) {
+                SizeF pageSize = calculator.calculate(originalPageSizes[i]);
+                pageWidths[i] = pageSize.getWidth();
+                pageHeights[i] = pageSize.getHeight();
+            }
+            prepareSpacing(displayOptions, viewSize);
+            documentLength = prepareDocLen(displayOptions);
+            preparePagesOffset(displayOptions);
+            scale = 1;
+        }
+
+        private Layout(Layout layout, float scale) {
+            this.scale = layout.scale * scale;
+            pageWidths = layout.pageWidths;
+            pageHeights = layout.pageHeights;
+            pageOffsets = layout.pageOffsets;
+            pageSpacing = layout.pageSpacing;
+            pageStarts = layout.pageStarts;
+            secondaryPageOffsets = layout.secondaryPageOffsets;
+            maxWidthPageSize = new SizeF(layout.maxWidthPageSize.getWidth() * scale,
+                    layout.maxWidthPageSize.getHeight() * scale);
+            maxHeightPageSize = new SizeF(layout.maxHeightPageSize.getWidth() * scale,
+                    layout.maxHeightPageSize.getHeight() * scale);
+            documentLength = layout.documentLength * scale;
         }
 
-        synchronized (lock) {
-            if (openedPages.indexOfKey(docPage) < 0) {
-                try {
-                    pdfiumCore.openPage(pdfDocument, docPage);
-                    openedPages.put(docPage, true);
-                    return true;
-                } catch (Exception e) {
-                    openedPages.put(docPage, false);
-                    throw new PageRenderingException(pageIndex, e);
+        /**
+         * @return this layout with all its pages scaled by the same factor, built without going through them
+         */
+        Layout scaled(float scale) {
+            return new Layout(this, scale);
+        }
+
+        /**
+         * Binary search, as the page starts are in increasing order
+         */
+        int getPageAtOffset(float offset, float zoom) {
+            float pageZoom = scale * zoom;
+            int low = 0;
+            int high = pageStarts.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (pageStarts[middle] * pageZoom < offset) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
                 }
             }
-            return false;
+            return Math.max(0, low - 1);
+        }
+
+        private void prepareSpacing(DisplayOptions displayOptions, Size viewSize) {
+            int pagesCount = pageWidths.length;
+            boolean autoSpacing = displayOptions.getPdfSpacing().getAutoSpacing();
+            for (int i = 0; i < pagesCount; i++) {
+                if (!autoSpacing) {
+                    pageSpacing[i] = displayOptions.getPdfSpacing().getPageSeparatorSpacing();
+                    continue;
+                }
+                float spacing = Math.max(0, displayOptions.isVertical() ? viewSize.getHeight() - pageHeights[i] :
+                        viewSize.getWidth() - pageWidths[i]);
+                if (i < pagesCount - 1) {
+                    spacing += displayOptions.getPdfSpacing().getPageSeparatorSpacing();
+                }
+                pageSpacing[i] = spacing;
+            }
+        }
+
+        private float prepareDocLen(DisplayOptions displayOptions) {
+            int pagesCount = pageWidths.length;
+            float length = 0;
+            for (int i = 0; i < pagesCount; i++) {
+                length += displayOptions.isVertical() ? pageHeights[i] : pageWidths[i];
+                if (displayOptions.getPdfSpacing().getAutoSpacing()) {
+                    length += pageSpacing[i];
+                } else if (i < pagesCount - 1) {
+                    length += displayOptions.getPdfSpacing().getPageSeparatorSpacing();
+                }
+            }
+            return length + displayOptions.getPdfSpacing().getStartSpacing()
+                    + displayOptions.getPdfSpacing().getEndSpacing();
+        }
+
+        private void preparePagesOffset(DisplayOptions displayOptions) {
+            int pagesCount = pageWidths.length;
+            float offset = 0;
+            float maxSecondaryLength = displayOptions.isVertical()
+                    ? maxWidthPageSize.getWidth()
+                    : maxHeightPageSize.getHeight();
+            for (int i = 0; i < pagesCount; i++) {
+                float size = displayOptions.isVertical() ? pageHeights[i] : pageWidths[i];
+                if (displayOptions.getPdfSpacing().getAutoSpacing()) {
+                    offset += pageSpacing[i] / 2f;
+                    if (i == 0) {
+                        offset -= displayOptions.getPdfSpacing().getPageSeparatorSpacing() / 2f;
+                    } else if (i == pagesCount - 1) {
+                        offset += displayOptions.getPdfSpacing().getPageSeparatorSpacing() / 2f;
+                    }
+                    pageOffsets[i] = offset;
+                    offset += size + pageSpacing[i] / 2f;
+                } else {
+                    // Adding a space at the beginning to be able to zoom out with a space between the top of the
+                    // screen and the first page of the PDF
+                    if (i == 0) {
+                        offset += displayOptions.getPdfSpacing().getStartSpacing();
+                    }
+                    pageOffsets[i] = offset;
+                    offset += size + displayOptions.getPdfSpacing().getPageSeparatorSpacing();
+                }
+                pageStarts[i] = pageOffsets[i] - pageSpacing[i] / 2f;
+                float secondaryLength = displayOptions.isVertical() ? pageWidths[i] : pageHeights[i];
+                secondaryPageOffsets[i] = (maxSecondaryLength - secondaryLength) / 2;
+            }
         }
     }
 
+    public boolean openPage(int pageIndex) throws PageRenderingException {
+        return mainHandle.openPage(pageIndex);
+    }
+
     public boolean pageHasError(int pageIndex) {
-        int docPage = documentPage(pageIndex);
-        return !openedPages.get(docPage, false);
+        return mainHandle.pageHasError(pageIndex);
     }
 
     public void renderPageBitmap(Bitmap bitmap, int pageIndex, Rect bounds, boolean annotationRendering) {
-        int docPage = documentPage(pageIndex);
-        pdfiumCore.renderPageBitmap(pdfDocument, bitmap, docPage,
-                bounds.left, bounds.top, bounds.width(), bounds.height(), annotationRendering);
+        mainHandle.renderPageBitmap(bitmap, pageIndex, bounds, annotationRendering);
+    }
+
+    DocumentHandle getMainHandle() {
+        return mainHandle;
+    }
+
+    /**
+     * Wrap another pdfium document of the same content, for a rendering worker that mustn't share the main one
+     */
+    DocumentHandle newHandle(PdfDocument document) {
+        return new DocumentHandle(document);
+    }
+
+    /**
+     * Replace the main document by another one of the same content, and close the old one with its opened pages.
+     * Must be called by the rendering worker which renders with the main document, if any.
+     *
+     * @return false if this file was disposed, the given document is then left to the caller
+     */
+    boolean replaceMainDocument(PdfDocument document) {
+        synchronized (mainHandle.lock) {
+            if (pdfDocument == null) {
+                return false;
+            }
+            mainHandle.replaceDocument(document);
+            pdfDocument = document;
+            return true;
+        }
+    }
+
+    int getOpenedPagesCount() {
+        return openedPagesCount.get();
+    }
+
+    int getClosedPagesCount() {
+        return closedPagesCount.get();
+    }
+
+    /**
+     * A pdfium document with its own opened pages. Pages can be opened from any thread, but each document must only be
+     * rendered from one thread at a time.
+     * <p>
+     * pdfium only closes the pages of a document along with it. To bound the opened pages, the rendering workers
+     * replace a handle having too many by a new one, or the document of the main handle by a new one, with only its
+     * most recently used pages opened again.
+     */
+    final class DocumentHandle {
+
+        private PdfDocument document;
+
+        /**
+         * Guards the opened pages, and the document against being closed or replaced while a page is opened
+         */
+        private final Object lock = new Object();
+
+        /**
+         * Opened pages with indicator whether opening was successful
+         */
+        private final SparseBooleanArray openedPages = new SparseBooleanArray();
+
+        /**
+         * Last use of each user page asked to {@link #openPage}, in increasing order
+         */
+        private final SparseIntArray pageUses = new SparseIntArray();
+
+        private int uses;
+
+        private int successfullyOpenedPages;
+
+        private DocumentHandle(PdfDocument document) {
+            this.document = document;
+        }
+
+        boolean openPage(int pageIndex) throws PageRenderingException {
+            int docPage = documentPage(pageIndex);
+            if (docPage < 0) {
+                return false;
+            }
+
+            synchronized (lock) {
+                pageUses.put(pageIndex, ++uses);
+                if (openedPages.indexOfKey(docPage) < 0) {
+                    try {
+                        pdfiumCore.openPage(document, docPage);
+                        openedPages.put(docPage, true);
+                        successfullyOpenedPages++;
+                        openedPagesCount.incrementAndGet();
+                        return true;
+                    } catch (Exception e) {
+                        openedPages.put(docPage, false);
+                        throw new PageRenderingException(pageIndex, e);
+                    }
+                }
+                return false;
+            }
+        }
+
+        boolean pageHasError(int pageIndex) {
+            int docPage = documentPage(pageIndex);
+            synchronized (lock) {
+                return !openedPages.get(docPage, false);
+            }
+        }
+
+        boolean isPageOpened(int pageIndex) {
+            int docPage = documentPage(pageIndex);
+            synchronized (lock) {
+                return openedPages.indexOfKey(docPage) >= 0;
+            }
+        }
+
+        int getOpenedPagesCount() {
+            synchronized (lock) {
+                return successfullyOpenedPages;
+            }
+        }
+
+        /**
+         * @return up to count user pages, from the most recently used one
+         */
+        int[] getRecentPages(int count) {
+            synchronized (lock) {
+                int[] recentPages = new int[Math.min(count, pageUses.size())];
+                int previousUse = Integer.MAX_VALUE;
+                for (int i = 0; i < recentPages.length; i++) {
+                    int recentIndex = -1;
+                    for (int j = 0; j < pageUses.size(); j++) {
+                        int use = pageUses.valueAt(j);
+                        if (use < previousUse && (recentIndex < 0 || use > pageUses.valueAt(recentIndex))) {
+                            recentIndex = j;
+                        }
+                    }
+                    recentPages[i] = pageUses.keyAt(recentIndex);
+                    previousUse = pageUses.valueAt(recentIndex);
+                }
+                return recentPages;
+            }
+        }
+
+        void renderPageBitmap(Bitmap bitmap, int pageIndex, Rect bounds, boolean annotationRendering) {
+            int docPage = documentPage(pageIndex);
+            pdfiumCore.renderPageBitmap(document, bitmap, docPage,
+                    bounds.left, bounds.top, bounds.width(), bounds.height(), annotationRendering);
+        }
+
+        /**
+         * Close the document and its pages, unless it's the main one which is closed by {@link #dispose()}
+         */
+        void close() {
+            if (this != mainHandle) {
+                synchronized (lock) {
+                    pdfiumCore.closeDocument(document);
+                    clearOpenedPages();
+                }
+            }
+        }
+
+        /**
+         * Close the document and its pages, and go on with the given one, without opened pages
+         */
+        private void replaceDocument(PdfDocument newDocument) {
+            synchronized (lock) {
+                pdfiumCore.closeDocument(document);
+                clearOpenedPages();
+                document = newDocument;
+            }
+        }
+
+        private void clearOpenedPages() {
+            openedPagesCount.addAndGet(-successfullyOpenedPages);
+            closedPagesCount.addAndGet(successfullyOpenedPages);
+            successfullyOpenedPages = 0;
+            openedPages.clear();
+            pageUses.clear();
+        }
+    }
+
+    @Nullable
+    public String getFingerprint() {
+        return fingerprint;
     }
 
     public PdfDocument.Meta getMetaData() {
-        if (pdfDocument == null) {
-            return null;
+        synchronized (mainHandle.lock) {
+            if (pdfDocument == null) {
+                return null;
+            }
+            return pdfiumCore.getDocumentMeta(pdfDocument);
         }
-        return pdfiumCore.getDocumentMeta(pdfDocument);
     }
 
     public List<PdfDocument.Bookmark> getBookmarks() {
-        if (pdfDocument == null) {
-            return new ArrayList<>();
+        synchronized (mainHandle.lock) {
+            if (pdfDocument == null) {
+                return new ArrayList<>();
+            }
+            return pdfiumCore.getTableOfContents(pdfDocument);
         }
-        return pdfiumCore.getTableOfContents(pdfDocument);
     }
 
     public List<PdfDocument.Link> getPageLinks(int pageIndex) {
         int docPage = documentPage(pageIndex);
-        return pdfiumCore.getPageLinks(pdfDocument, docPage);
+        synchronized (mainHandle.lock) {
+            // The rendering workers may not render this page with the main document
+            try {
+                mainHandle.openPage(pageIndex);
+            } catch (PageRenderingException e) {
+                return new ArrayList<>();
+            }
+            return pdfiumCore.getPageLinks(pdfDocument, docPage);
+        }
     }
 
     public RectF mapRectToDevice(int pageIndex, int startX, int startY, int sizeX, int sizeY,
                                  RectF rect) {
         int docPage = documentPage(pageIndex);
-        return pdfiumCore.mapRectToDevice(pdfDocument, docPage, startX, startY, sizeX, sizeY, 0, rect);
+        synchronized (mainHandle.lock) {
+            return pdfiumCore.mapRectToDevice(pdfDocument, docPage, startX, startY, sizeX, sizeY, 0, rect);
+        }
     }
 
     public void dispose() {
-        if (pdfiumCore != null && pdfDocument != null) {
-            pdfiumCore.closeDocument(pdfDocument);
-        }
+        synchronized (mainHandle.lock) {
+            if (pdfiumCore != null && pdfDocument != null) {
+                pdfiumCore.closeDocument(pdfDocument);
+            }
 
-        pdfDocument = null;
-        originalUserPages = null;
+            pdfDocument = null;
+            originalUserPages = null;
+        }
     }
 
     /**
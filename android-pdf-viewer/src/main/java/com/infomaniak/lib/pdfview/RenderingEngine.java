@@ -0,0 +1,704 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static com.infomaniak.lib.pdfview.util.Constants.PageHandles.IDLE_PAGES_TIMEOUT;
+import static com.infomaniak.lib.pdfview.util.Constants.PageHandles.KEPT_OPENED_PAGES;
+import static com.infomaniak.lib.pdfview.util.Constants.PageHandles.MAX_OPENED_PAGES;
+import static com.infomaniak.lib.pdfview.util.Constants.PageHandles.PRE_OPENED_PAGES;
+
+import android.graphics.RectF;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.infomaniak.lib.pdfview.RenderingHandler.RenderingSize;
+import com.infomaniak.lib.pdfview.exception.PageRenderingException;
+import com.infomaniak.lib.pdfview.model.TileKey;
+import com.infomaniak.lib.pdfview.source.DocumentSource;
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues the parts to render and hands them to one or more {@link RenderingHandler} workers.
+ * <p>
+ * The first worker runs on the looper given by {@link PDFView} and renders with the main document. The other ones get
+ * their own thread and open their own pdfium document from the same source, so that workers never share pdfium
+ * state. A worker that can't open its own document, for example because its source can only be read once, leaves its
+ * work to the first one. Sources which keep the whole document in memory get a single worker, since each document
+ * opened from them is another copy of the content, see {@link DocumentSource#isInMemory()}.
+ * <p>
+ * Each message sent to a worker takes the next task of the shared queue, so a task never waits behind a busy worker.
+ * The queue is ordered by priority rather than by arrival: thumbnails of the visible pages first, since they fill the
+ * blank pages quickly, then the previews of the visible parts in progressive mode, see
+ * {@link PDFView#setProgressiveRendering(boolean)}, then the visible parts from the centre of the screen outwards,
+ * then the parts and thumbnails
+ * out of sight by distance to the centre, and the pages rendered for printing last. The priorities are updated in
+ * place when the viewport moves, see {@link #reprioritize()}. During a fling, they're computed for the viewport where
+ * the fling stops, see {@link #setDestination(float, float)}.
+ * <p>
+ * When the viewport changes, {@link PDFView} describes the whole set of parts it wants between {@link #beginSet()}
+ * and {@link #endSet()}. Only the difference with the previous set is applied: parts already queued or being
+ * rendered aren't queued again, and only the queued parts no longer wanted are dropped.
+ * <p>
+ * The pages opened in pdfium stay in memory until their document is closed. A worker whose document has more than
+ * {@link com.infomaniak.lib.pdfview.util.Constants.PageHandles#MAX_OPENED_PAGES} opened pages opens the document again,
+ * with only its most recently used pages, and closes the old one. The first worker, which renders with the main
+ * document, replaces it in place the same way, so that there's never more than one new document. Sources kept in
+ * memory aren't opened again, since their documents are copies of the content, so their pages stay opened. A worker
+ * which didn't render for {@link com.infomaniak.lib.pdfview.util.Constants.PageHandles#IDLE_PAGES_TIMEOUT} keeps only its
+ * most recently used pages the same way, and so do all the workers on critical memory pressure, see
+ * {@link #releaseIdlePages()}. The next pages in the scroll direction are opened ahead by the workers, see
+ * {@link #preOpenPages(int, PDFView.ScrollDir)}, so that their first part doesn't wait for pdfium to load them.
+ */
+final class RenderingEngine {
+
+    private static final String TAG = RenderingEngine.class.getSimpleName();
+
+    private static final int BAND_VISIBLE_THUMBNAIL = 0;
+    private static final int BAND_VISIBLE_PREVIEW = 1;
+    private static final int BAND_VISIBLE_PART = 2;
+    private static final int BAND_HIDDEN = 3;
+    private static final int BAND_PRINTING = 4;
+
+    private static final int EXPECTED_TASKS_COUNT = 64;
+
+    private final PDFView pdfView;
+
+    private final PdfiumCore pdfiumCore;
+
+    private final DocumentSource documentSource;
+
+    private final String password;
+
+    private final RenderingQueue tasks = new RenderingQueue();
+
+    /**
+     * Queued tasks by {@link RenderingTask#key}, printing tasks excepted, guarded by {@link #tasks}
+     */
+    private final TileIndex<RenderingTask> queuedTasks = new TileIndex<>(EXPECTED_TASKS_COUNT);
+
+    /**
+     * Tasks taken by a worker whose part isn't in the cache yet, guarded by {@link #tasks}
+     */
+    private final TileIndex<RenderingTask> renderingTasks = new TileIndex<>(EXPECTED_TASKS_COUNT);
+
+    private long sequence;
+
+    /**
+     * Set of wanted parts being built between {@link #beginSet()} and {@link #endSet()}
+     */
+    private int generation;
+
+    /**
+     * Where the current fling stops, the tasks are then prioritized for that viewport, guarded by {@link #tasks}
+     */
+    private boolean hasDestination;
+
+    private float destinationXOffset;
+
+    private float destinationYOffset;
+
+    private final RenderingHandler[] workers;
+
+    /**
+     * Threads of the workers, except the first one which belongs to {@link PDFView}
+     */
+    private final HandlerThread[] workerThreads;
+
+    /**
+     * Document of each worker, only used from its thread
+     */
+    private final PdfFile.DocumentHandle[] documents;
+
+    /**
+     * Workers which couldn't open their own document, guarded by {@link #tasks}
+     */
+    private final boolean[] disabled;
+
+    private int nextWorker;
+
+    /**
+     * Workers which couldn't open their document again, or whose documents are in memory, they keep all their pages
+     * opened
+     */
+    private final boolean[] cannotReleasePages;
+
+    private final AtomicInteger preOpenedPagesCount = new AtomicInteger();
+
+    /**
+     * Page and direction of the last pages opened ahead, only used on the UI thread
+     */
+    private int preOpenedFromPage = -1;
+
+    private PDFView.ScrollDir preOpenedDir;
+
+    RenderingEngine(
+            PDFView pdfView,
+            Looper looper,
+            int workersCount,
+            PdfiumCore pdfiumCore,
+            DocumentSource documentSource,
+            String password
+    ) {
+        this.pdfView = pdfView;
+        this.pdfiumCore = pdfiumCore;
+        this.documentSource = documentSource;
+        this.password = password;
+
+        int count = documentSource.isInMemory() ? 1 : Math.max(1, workersCount);
+        workers = new RenderingHandler[count];
+        workerThreads = new HandlerThread[count];
+        documents = new PdfFile.DocumentHandle[count];
+        disabled = new boolean[count];
+        cannotReleasePages = new boolean[count];
+        Arrays.fill(cannotReleasePages, documentSource.isInMemory());
+
+        workers[0] = new RenderingHandler(looper, pdfView, this, 0);
+        for (int i = 1; i < count; i++) {
+            workerThreads[i] = new HandlerThread("PDF renderer " + i);
+            workerThreads[i].start();
+            workers[i] = new RenderingHandler(workerThreads[i].getLooper(), pdfView, this, i);
+        }
+    }
+
+    /**
+     * Start describing the wanted parts, each one given to {@link #addRenderingTask}. Must be called on the UI thread.
+     */
+    void beginSet() {
+        synchronized (tasks) {
+            generation++;
+        }
+    }
+
+    /**
+     * Drop the queued parts which weren't asked for again since {@link #beginSet()}. Parts being rendered complete.
+     */
+    void endSet() {
+        synchronized (tasks) {
+            if (tasks.removeStale(generation) > 0) {
+                rebuildIndex();
+            }
+        }
+    }
+
+    private void rebuildIndex() {
+        queuedTasks.clear();
+        for (int i = 0; i < tasks.size(); i++) {
+            RenderingTask task = tasks.get(i);
+            if (!task.isForPrinting) {
+                queuedTasks.put(task.key, task);
+            }
+        }
+    }
+
+    /**
+     * Queue a part, unless the same part is already queued or being rendered.
+     * A part queued again keeps its place, with the new cache order.
+     */
+    void addRenderingTask(
+            int page,
+            long key,
+            RenderingSize renderingSize,
+            boolean thumbnail,
+            int cacheOrder,
+            boolean bestQuality,
+            boolean annotationRendering,
+            boolean isForPrinting,
+            boolean preview
+    ) {
+        RenderingTask task = new RenderingTask(
+                renderingSize,
+                page,
+                key,
+                thumbnail,
+                cacheOrder,
+                bestQuality,
+                annotationRendering,
+                isForPrinting,
+                preview
+        );
+        RenderingHandler worker;
+        synchronized (tasks) {
+            if (!isForPrinting) {
+                RenderingTask queuedTask = queuedTasks.get(key);
+                if (queuedTask != null) {
+                    queuedTask.generation = generation;
+                    queuedTask.cacheOrder = cacheOrder;
+                    return;
+                }
+                if (renderingTasks.contains(key)) {
+                    return;
+                }
+                queuedTasks.put(key, task);
+            }
+            prioritize(task);
+            task.generation = generation;
+            task.sequence = sequence++;
+            tasks.add(task);
+            worker = nextWorker();
+        }
+        worker.sendEmptyMessage(RenderingHandler.MSG_RENDER_TASK);
+    }
+
+    /**
+     * Compute the priority of the queued tasks again, after the viewport moved. Must be called on the UI thread.
+     * In progressive mode, the refinements of parts the viewport moved away from are dropped too.
+     */
+    void reprioritize() {
+        synchronized (tasks) {
+            if (tasks.isEmpty()) {
+                return;
+            }
+            boolean dropRefinements = false;
+            Viewport viewport = pdfView.getViewport();
+            float maxRefinementDistance = Math.max(viewport.getWidth(), viewport.getHeight());
+            for (int i = 0; i < tasks.size(); i++) {
+                RenderingTask task = tasks.get(i);
+                prioritize(task);
+                if (pdfView.isProgressiveRendering() && isRefinement(task)
+                        && task.distance > maxRefinementDistance) {
+                    // Left out of the current set, see endSet()
+                    task.generation = generation - 1;
+                    dropRefinements = true;
+                }
+            }
+            if (dropRefinements && tasks.removeStale(generation) > 0) {
+                rebuildIndex();
+            } else {
+                tasks.heapify();
+            }
+        }
+    }
+
+    /**
+     * Prioritize the tasks for the viewport at these offsets rather than the current one, until
+     * {@link #clearDestination()}. Must be called on the UI thread.
+     */
+    void setDestination(float xOffset, float yOffset) {
+        synchronized (tasks) {
+            hasDestination = true;
+            destinationXOffset = xOffset;
+            destinationYOffset = yOffset;
+        }
+        reprioritize();
+    }
+
+    void clearDestination() {
+        synchronized (tasks) {
+            hasDestination = false;
+        }
+        reprioritize();
+    }
+
+    private static boolean isRefinement(RenderingTask task) {
+        return !task.preview && !task.thumbnail && !task.isForPrinting;
+    }
+
+    private void prioritize(RenderingTask task) {
+        if (task.isForPrinting) {
+            task.band = BAND_PRINTING;
+            task.distance = task.page;
+            return;
+        }
+        Viewport viewport = pdfView.getViewport();
+        RectF bounds = task.renderingSize.getBounds();
+        float xOffset = hasDestination ? destinationXOffset : pdfView.getCurrentXOffset();
+        float yOffset = hasDestination ? destinationYOffset : pdfView.getCurrentYOffset();
+        if (viewport.getDistance(task.page, bounds, xOffset, yOffset) > 0) {
+            task.band = BAND_HIDDEN;
+        } else {
+            if (task.thumbnail) {
+                task.band = BAND_VISIBLE_THUMBNAIL;
+            } else {
+                task.band = task.preview ? BAND_VISIBLE_PREVIEW : BAND_VISIBLE_PART;
+            }
+        }
+        task.distance = viewport.getDistanceToCenter(task.page, bounds, xOffset, yOffset);
+    }
+
+    /**
+     * Round robin over the workers able to render
+     */
+    private RenderingHandler nextWorker() {
+        for (int i = 0; i < workers.length; i++) {
+            int index = nextWorker;
+            nextWorker = (nextWorker + 1) % workers.length;
+            if (!disabled[index]) {
+                return workers[index];
+            }
+        }
+        return workers[0];
+    }
+
+    /**
+     * Take the next task to render. It must be given to {@link #finish} once its part is in the cache or failed.
+     */
+    @Nullable
+    RenderingTask pollTask() {
+        synchronized (tasks) {
+            RenderingTask task = tasks.poll();
+            if (task != null && !task.isForPrinting) {
+                queuedTasks.remove(task.key);
+                renderingTasks.put(task.key, task);
+            }
+            return task;
+        }
+    }
+
+    /**
+     * Take the queued parts which can be rendered in the same pdfium call as the given one: parts of the same page,
+     * zoom level and quality, which form a rectangle of the page grid with it. The rectangle grows from the given
+     * part while its cells are all queued and its pixels stay within the limit.
+     *
+     * @param out receives the adjacent tasks, which must be given to {@link #finish} like the polled ones
+     */
+    void pollAdjacentTasks(RenderingTask task, List<RenderingTask> out, int maxPixels) {
+        if (task.thumbnail || task.isForPrinting) {
+            return;
+        }
+        int page = TileKey.page(task.key);
+        int sizeLevel = TileKey.sizeLevel(task.key);
+        int rows = TileKey.rows(task.key);
+        int cols = TileKey.cols(task.key);
+        float cellWidth = task.renderingSize.getWidth() / task.renderingSize.getBounds().width() / cols;
+        float cellHeight = task.renderingSize.getHeight() / task.renderingSize.getBounds().height() / rows;
+        int maxCells = (int) (maxPixels / Math.max(1, cellWidth * cellHeight));
+
+        synchronized (tasks) {
+            int firstRow = TileKey.row(task.key);
+            int lastRow = firstRow;
+            int firstCol = TileKey.col(task.key);
+            int lastCol = firstCol;
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                if (lastCol + 1 < cols && fits(firstRow, lastRow, firstCol, lastCol + 1, maxCells)
+                        && areCoalescable(task, firstRow, lastRow, lastCol + 1, lastCol + 1)) {
+                    lastCol++;
+                    grown = true;
+                }
+                if (lastRow + 1 < rows && fits(firstRow, lastRow + 1, firstCol, lastCol, maxCells)
+                        && areCoalescable(task, lastRow + 1, lastRow + 1, firstCol, lastCol)) {
+                    lastRow++;
+                    grown = true;
+                }
+                if (firstCol > 0 && fits(firstRow, lastRow, firstCol - 1, lastCol, maxCells)
+                        && areCoalescable(task, firstRow, lastRow, firstCol - 1, firstCol - 1)) {
+                    firstCol--;
+                    grown = true;
+                }
+                if (firstRow > 0 && fits(firstRow - 1, lastRow, firstCol, lastCol, maxCells)
+                        && areCoalescable(task, firstRow - 1, firstRow - 1, firstCol, lastCol)) {
+                    firstRow--;
+                    grown = true;
+                }
+            }
+
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int col = firstCol; col <= lastCol; col++) {
+                    long key = TileKey.of(page, sizeLevel, rows, cols, row, col);
+                    if (key == task.key) {
+                        continue;
+                    }
+                    RenderingTask adjacentTask = queuedTasks.remove(key);
+                    tasks.remove(adjacentTask);
+                    renderingTasks.put(key, adjacentTask);
+                    out.add(adjacentTask);
+                }
+            }
+        }
+    }
+
+    private static boolean fits(int firstRow, int lastRow, int firstCol, int lastCol, int maxCells) {
+        return (lastCol - firstCol + 1) * (lastRow - firstRow + 1) <= maxCells;
+    }
+
+    /**
+     * @return true if all the cells are queued and can be rendered with the task
+     */
+    private boolean areCoalescable(RenderingTask task, int firstRow, int lastRow, int firstCol, int lastCol) {
+        int page = TileKey.page(task.key);
+        int sizeLevel = TileKey.sizeLevel(task.key);
+        int rows = TileKey.rows(task.key);
+        int cols = TileKey.cols(task.key);
+        float pageWidth = task.renderingSize.getWidth() / task.renderingSize.getBounds().width();
+        float pageHeight = task.renderingSize.getHeight() / task.renderingSize.getBounds().height();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                RenderingTask candidate = queuedTasks.get(TileKey.of(page, sizeLevel, rows, cols, row, col));
+                if (candidate == null
+                        || candidate.bestQuality != task.bestQuality
+                        || candidate.annotationRendering != task.annotationRendering
+                        || candidate.preview != task.preview
+                        // Same grid but queued at another zoom
+                        || Math.abs(candidate.renderingSize.getWidth()
+                        / candidate.renderingSize.getBounds().width() - pageWidth) >= 1
+                        || Math.abs(candidate.renderingSize.getHeight()
+                        / candidate.renderingSize.getBounds().height() - pageHeight) >= 1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    void finish(RenderingTask task) {
+        synchronized (tasks) {
+            if (renderingTasks.get(task.key) == task) {
+                renderingTasks.remove(task.key);
+            }
+        }
+    }
+
+    int getQueuedTasksCount() {
+        synchronized (tasks) {
+            return tasks.size();
+        }
+    }
+
+    int getRenderingTasksCount() {
+        synchronized (tasks) {
+            return renderingTasks.size();
+        }
+    }
+
+    /**
+     * Drop all the queued tasks. Tasks being rendered still complete.
+     */
+    void cancelAll() {
+        synchronized (tasks) {
+            tasks.clear();
+            queuedTasks.clear();
+        }
+        for (RenderingHandler worker : workers) {
+            worker.removeMessages(RenderingHandler.MSG_RENDER_TASK);
+        }
+    }
+
+    void start() {
+        for (RenderingHandler worker : workers) {
+            worker.start();
+        }
+    }
+
+    void stop() {
+        for (RenderingHandler worker : workers) {
+            worker.stop();
+        }
+    }
+
+    int getWorkersCount() {
+        return workers.length;
+    }
+
+    /**
+     * Have the workers open the next pages in the scroll direction, unless they were already asked to from this page.
+     * Must be called on the UI thread.
+     */
+    void preOpenPages(int currentPage, PDFView.ScrollDir dir) {
+        if (currentPage == preOpenedFromPage && dir == preOpenedDir) {
+            return;
+        }
+        preOpenedFromPage = currentPage;
+        preOpenedDir = dir;
+
+        int step = dir == PDFView.ScrollDir.START ? -1 : 1;
+        int pagesCount = pdfView.getPageCount();
+        for (int i = 1; i <= PRE_OPENED_PAGES; i++) {
+            int page = currentPage + i * step;
+            if (page < 0 || page >= pagesCount) {
+                break;
+            }
+            for (int j = 0; j < workers.length; j++) {
+                boolean workerDisabled;
+                synchronized (tasks) {
+                    workerDisabled = disabled[j];
+                }
+                if (!workerDisabled) {
+                    workers[j].sendMessage(workers[j].obtainMessage(RenderingHandler.MSG_PRE_OPEN_PAGE, page, 0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Called from the thread of the worker
+     */
+    void preOpenPage(PdfFile.DocumentHandle document, int page) {
+        if (document.isPageOpened(page)) {
+            return;
+        }
+        try {
+            document.openPage(page);
+            preOpenedPagesCount.incrementAndGet();
+        } catch (PageRenderingException e) {
+            // Reported if one of its parts is rendered
+        }
+    }
+
+    int getPreOpenedPagesCount() {
+        return preOpenedPagesCount.get();
+    }
+
+    /**
+     * Called from the thread of the worker.
+     *
+     * @return the document the worker renders with, or null if it can't have its own and must hand its task over
+     */
+    @Nullable
+    PdfFile.DocumentHandle getDocument(int workerIndex) {
+        PdfFile pdfFile = pdfView.pdfFile;
+        if (pdfFile == null) {
+            return null;
+        }
+        if (documents[workerIndex] == null && workerIndex > 0) {
+            try {
+                PdfDocument document = documentSource.createDocument(pdfView.getContext(), pdfiumCore, password);
+                documents[workerIndex] = pdfFile.newHandle(document);
+            } catch (Exception e) {
+                Log.w(TAG, "Rendering worker " + workerIndex + " can't open its own document", e);
+                synchronized (tasks) {
+                    disabled[workerIndex] = true;
+                }
+                workerThreads[workerIndex].quit();
+                return null;
+            }
+        }
+        PdfFile.DocumentHandle document = documents[workerIndex];
+        if (document == null) {
+            document = pdfFile.getMainHandle();
+        }
+        if (document.getOpenedPagesCount() > MAX_OPENED_PAGES && !cannotReleasePages[workerIndex]) {
+            document = releasePages(pdfFile, workerIndex, document);
+        }
+        return document;
+    }
+
+    /**
+     * Close the document of the worker and open it again with only its most recently used pages. The main document is
+     * replaced in place, the other ones by a new handle.
+     *
+     * @return the document the worker renders with from now on
+     */
+    private PdfFile.DocumentHandle releasePages(PdfFile pdfFile, int workerIndex, PdfFile.DocumentHandle document) {
+        int[] recentPages = document.getRecentPages(KEPT_OPENED_PAGES);
+        PdfDocument newDocument;
+        try {
+            newDocument = documentSource.createDocument(pdfView.getContext(), pdfiumCore, password);
+        } catch (Exception e) {
+            Log.w(TAG, "Rendering worker " + workerIndex + " can't release its opened pages", e);
+            cannotReleasePages[workerIndex] = true;
+            return document;
+        }
+        PdfFile.DocumentHandle newHandle;
+        if (document == pdfFile.getMainHandle()) {
+            if (!pdfFile.replaceMainDocument(newDocument)) {
+                pdfiumCore.closeDocument(newDocument);
+                return document;
+            }
+            newHandle = document;
+        } else {
+            document.close();
+            newHandle = pdfFile.newHandle(newDocument);
+            documents[workerIndex] = newHandle;
+        }
+        for (int page : recentPages) {
+            try {
+                newHandle.openPage(page);
+            } catch (PageRenderingException e) {
+                // Reported if one of its parts is rendered
+            }
+        }
+        return newHandle;
+    }
+
+    /**
+     * Have the worker release the pages it doesn't use anymore if it doesn't render for a while.
+     * Called from the thread of the worker after each rendering.
+     */
+    void scheduleIdlePagesRelease(int workerIndex) {
+        RenderingHandler worker = workers[workerIndex];
+        worker.removeMessages(RenderingHandler.MSG_RELEASE_PAGES);
+        worker.sendEmptyMessageDelayed(RenderingHandler.MSG_RELEASE_PAGES, IDLE_PAGES_TIMEOUT);
+    }
+
+    /**
+     * Have all the workers release the pages they don't use anymore now, on critical memory pressure
+     */
+    void releaseIdlePages() {
+        for (int i = 0; i < workers.length; i++) {
+            boolean workerDisabled;
+            synchronized (tasks) {
+                workerDisabled = disabled[i];
+            }
+            if (!workerDisabled) {
+                workers[i].removeMessages(RenderingHandler.MSG_RELEASE_PAGES);
+                workers[i].sendEmptyMessage(RenderingHandler.MSG_RELEASE_PAGES);
+            }
+        }
+    }
+
+    /**
+     * Open the document of the worker again with only its most recently used pages, if it has more.
+     * Called from the thread of the worker.
+     */
+    void releasePages(int workerIndex, PdfFile.DocumentHandle document) {
+        PdfFile pdfFile = pdfView.pdfFile;
+        if (pdfFile != null && document.getOpenedPagesCount() > KEPT_OPENED_PAGES && !cannotReleasePages[workerIndex]) {
+            releasePages(pdfFile, workerIndex, document);
+        }
+    }
+
+    /**
+     * Give the task of a worker which couldn't open its own document to the first worker, which renders with the main
+     * document. Must not be called by the first worker, nor while the view has no {@link PdfFile}.
+     */
+    void handOver() {
+        workers[0].sendEmptyMessage(RenderingHandler.MSG_RENDER_TASK);
+    }
+
+    /**
+     * Drop the queued tasks, then close the documents of the workers and quit their threads once they're done.
+     * The thread of the first worker is left to {@link PDFView}.
+     */
+    void quit() {
+        stop();
+        cancelAll();
+        for (int i = 0; i < workers.length; i++) {
+            int index = i;
+            workers[i].removeMessages(RenderingHandler.MSG_PRE_OPEN_PAGE);
+            workers[i].removeMessages(RenderingHandler.MSG_RELEASE_PAGES);
+            workers[i].post(() -> {
+                if (documents[index] != null) {
+                    documents[index].close();
+                    documents[index] = null;
+                }
+                if (workerThreads[index] != null) {
+                    workerThreads[index].quit();
+                }
+            });
+        }
+    }
+}
@@ -19,52 +19,52 @@
 package com.infomaniak.lib.pdfview
 
 import android.graphics.Bitmap
+import android.graphics.Canvas
 import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.PorterDuff
+import android.graphics.PorterDuffXfermode
 import android.graphics.Rect
 import android.graphics.RectF
 import android.os.Handler
 import android.os.Looper
 import android.os.Message
+import android.os.SystemClock
 import android.util.Log
-import com.infomaniak.lib.pdfview.RenderingHandler.RenderingTask
 import com.infomaniak.lib.pdfview.exception.PageRenderingException
 import com.infomaniak.lib.pdfview.model.PagePart
+import com.infomaniak.lib.pdfview.util.Constants.MAX_COALESCED_PIXELS
 
 /**
- * A [Handler] that will process incoming [RenderingTask] messages
+ * A [Handler] that will process the [RenderingTask]s queued in its [RenderingEngine]
  * and alert [PDFView.onBitmapRendered] when the portion of the
  * PDF is ready to render.
+ *
+ * Adjacent parts of the same page and zoom level queued together are rendered in a single pdfium call, into a
+ * scratch bitmap of at most [MAX_COALESCED_PIXELS] pixels, which is then sliced into the parts. pdfium walks the
+ * content of the page once instead of once per part.
  */
 internal class RenderingHandler(
     looper: Looper?,
     private val pdfView: PDFView,
+    private val engine: RenderingEngine,
+    private val workerIndex: Int,
 ) : Handler(looper!!) {
     private val renderBounds = RectF()
     private val roundedRenderBounds = Rect()
     private val renderMatrix = Matrix()
-    private var running = false
 
-    fun addRenderingTask(
-        page: Int,
-        renderingSize: RenderingSize,
-        thumbnail: Boolean,
-        cacheOrder: Int,
-        bestQuality: Boolean,
-        annotationRendering: Boolean,
-        isForPrinting: Boolean,
-    ) {
-        val task = RenderingTask(
-            renderingSize,
-            page,
-            thumbnail,
-            cacheOrder,
-            bestQuality,
-            annotationRendering,
-            isForPrinting,
-        )
-        val msg = obtainMessage(MSG_RENDER_TASK, task)
-        sendMessage(msg)
-    }
+    private val coalescedTasks = ArrayList<RenderingTask>()
+    private var coalescedDelivered = BooleanArray(0)
+    private var coalescedBitmaps = arrayOfNulls<Bitmap>(0)
+    private var coalescedBounds = arrayOfNulls<Rect>(0)
+    private val sliceCanvas = Canvas()
+    private val sliceSrcRect = Rect()
+    private val sliceDstRect = Rect()
+    private val slicePaint = Paint().apply { xfermode = PorterDuffXfermode(PorterDuff.Mode.SRC) }
+
+    @Volatile
+    private var running = false
 
     fun stop() {
         running = false
@@ -75,59 +75,293 @@ internal class RenderingHandler(
     }
 
     override fun handleMessage(message: Message): Unit = with(pdfView) {
-        val task = message.obj as RenderingTask
-        runCatching {
-            proceed(task)?.let { pagePart ->
-                if (running) {
-                    post { onBitmapRendered(pagePart, task.isForPrinting) }
-                } else {
-                    pagePart.renderedBitmap.recycle()
-                }
+        val document = engine.getDocument(workerIndex)
+        if (message.what == MSG_PRE_OPEN_PAGE) {
+            if (document != null) engine.preOpenPage(document, message.arg1)
+            return
+        }
+        if (message.what == MSG_RELEASE_PAGES) {
+            if (document != null) engine.releasePages(workerIndex, document)
+            return
+        }
+        if (document == null) {
+            // Without a PdfFile the view is being recycled or reloaded, there's nothing to hand over. The first worker
+            // renders with the main document, so it never gets here otherwise.
+            if (workerIndex > 0 && pdfFile != null) engine.handOver()
+            return
+        }
+        val task = engine.pollTask() ?: return
+        coalescedTasks.clear()
+        coalescedTasks.add(task)
+        engine.pollAdjacentTasks(task, coalescedTasks, MAX_COALESCED_PIXELS)
+        ensureCoalescedCapacity(coalescedTasks.size)
+        coalescedDelivered.fill(false, 0, coalescedTasks.size)
+        try {
+            if (coalescedTasks.size == 1) {
+                deliver(0, proceed(task, document))
+            } else {
+                proceedCoalesced(coalescedTasks, document)
             }
-        }.onFailure { exception ->
-            if (exception is PageRenderingException) post { onPageError(exception) }
+        } catch (exception: PageRenderingException) {
+            finishUndelivered()
+            post { onPageError(exception) }
+        } catch (exception: Exception) {
+            // For example pdfium when the document or the bitmap is released while rendering. The worker must go on
+            // with the next tasks, the failed ones are dropped.
+            Log.e(TAG, "Cannot render page ${task.page}", exception)
+            finishUndelivered()
+        } finally {
+            releaseCoalescedBitmaps()
+            engine.scheduleIdlePagesRelease(workerIndex)
         }
     }
 
-    @Throws(PageRenderingException::class)
-    private fun proceed(renderingTask: RenderingTask): PagePart? {
-        val pdfFile = pdfView.pdfFile
-        pdfFile.openPage(renderingTask.page)
+    /**
+     * Publish the part of the task at this index of [coalescedTasks]
+     */
+    private fun deliver(index: Int, pagePart: PagePart?) {
+        coalescedDelivered[index] = true
+        publish(coalescedTasks[index], pagePart)
+    }
 
-        val w = Math.round(renderingTask.renderingSize.width)
-        val h = Math.round(renderingTask.renderingSize.height)
+    /**
+     * Finish the tasks whose part wasn't published before the rendering failed, so that they can be queued again
+     */
+    private fun finishUndelivered() {
+        for (i in coalescedTasks.indices) {
+            if (!coalescedDelivered[i]) engine.finish(coalescedTasks[i])
+        }
+    }
 
-        if (w == 0 || h == 0 || pdfFile.pageHasError(renderingTask.page)) {
-            return null
+    /**
+     * Give back to the pool the bitmaps of the parts that weren't sliced, when the rendering failed
+     */
+    private fun releaseCoalescedBitmaps() {
+        for (i in coalescedTasks.indices) {
+            pdfView.cacheManager.bitmapPool.put(coalescedBitmaps[i] ?: continue)
+            coalescedBitmaps[i] = null
         }
+    }
 
-        var render: Bitmap? = null
-        runCatching {
-            Bitmap.createBitmap(
-                w, h, if (renderingTask.bestQuality) Bitmap.Config.ARGB_8888 else Bitmap.Config.RGB_565
-            )
-        }.onSuccess { renderedBitmap ->
-            render = renderedBitmap
-        }.onFailure {
-            Log.e(TAG, "Cannot create bitmap", it)
-            render = null
+    private fun publish(task: RenderingTask, pagePart: PagePart?) {
+        if (pagePart != null && running) {
+            // The part stays in flight until it's in the cache, so that it's not queued again meanwhile
+            pdfView.post {
+                engine.finish(task)
+                pdfView.onBitmapRendered(pagePart, task.isForPrinting)
+            }
+        } else {
+            engine.finish(task)
+            pagePart?.renderedBitmap?.recycle()
         }
+    }
 
-        calculateBounds(w, h, renderingTask.renderingSize.bounds)
+    private fun bitmapConfig(renderingTask: RenderingTask): Bitmap.Config {
+        return if (renderingTask.bestQuality) Bitmap.Config.ARGB_8888 else Bitmap.Config.RGB_565
+    }
+
+    private fun obtainBitmap(width: Int, height: Int, config: Bitmap.Config, fromPool: Boolean = true): Bitmap? {
+        return runCatching {
+            val pooled = if (fromPool) pdfView.cacheManager.bitmapPool.get(width, height, config) else null
+            pooled ?: Bitmap.createBitmap(width, height, config)
+        }.onFailure {
+            Log.e(TAG, "Cannot create bitmap", it)
+        }.getOrNull()
+    }
 
-        pdfFile.renderPageBitmap(
-            render, renderingTask.page, roundedRenderBounds, renderingTask.annotationRendering
+    /**
+     * @return the name of the part in the disk cache, or null if it mustn't be cached.
+     * Must be called after [calculateBounds].
+     */
+    private fun diskPartName(renderingTask: RenderingTask, width: Int, height: Int, config: Bitmap.Config): String? {
+        // Parts rendered for printing are handed to the app, they're not worth keeping on disk
+        if (pdfView.diskTileCache == null || renderingTask.isForPrinting) return null
+        val pdfFile = pdfView.pdfFile
+        if (pdfFile.fingerprint == null) return null
+        return DiskTileCache.partName(
+            pdfFile.documentPage(renderingTask.page),
+            roundedRenderBounds,
+            width,
+            height,
+            config,
+            renderingTask.annotationRendering,
         )
+    }
 
+    private fun newPagePart(renderingTask: RenderingTask, bitmap: Bitmap?): PagePart {
         return PagePart(
             renderingTask.page,
-            render,
+            bitmap,
             renderingTask.renderingSize.bounds,
             renderingTask.thumbnail,
-            renderingTask.cacheOrder
+            renderingTask.cacheOrder,
+            renderingTask.key,
+            renderingTask.preview,
         )
     }
 
+    @Throws(PageRenderingException::class)
+    private fun proceed(renderingTask: RenderingTask, document: PdfFile.DocumentHandle): PagePart? {
+        val w = Math.round(renderingTask.renderingSize.width)
+        val h = Math.round(renderingTask.renderingSize.height)
+
+        if (w == 0 || h == 0) {
+            return null
+        }
+
+        val config = bitmapConfig(renderingTask)
+        // Pages rendered for printing are handed to the app, they get a bitmap of their exact size for the printing
+        // budget to hold
+        val render = obtainBitmap(w, h, config, fromPool = !renderingTask.isForPrinting) ?: return null
+
+        calculateBounds(w, h, renderingTask.renderingSize.bounds)
+
+        val diskTileCache = pdfView.diskTileCache
+        val documentKey = pdfView.pdfFile.fingerprint
+        val partName = diskPartName(renderingTask, w, h, config)
+
+        try {
+            val loadedFromDisk = partName != null && diskTileCache?.load(documentKey, partName, render) == true
+            if (!loadedFromDisk) {
+                document.openPage(renderingTask.page)
+                if (document.pageHasError(renderingTask.page)) {
+                    pdfView.cacheManager.bitmapPool.put(render)
+                    return null
+                }
+
+                val startNanos = SystemClock.elapsedRealtimeNanos()
+                document.renderPageBitmap(
+                    render, renderingTask.page, roundedRenderBounds, renderingTask.annotationRendering
+                )
+                reportRenderCost(renderingTask.page, startNanos, w.toLong() * h)
+
+                if (partName != null) diskTileCache?.save(documentKey, partName, render)
+            }
+        } catch (exception: Exception) {
+            pdfView.cacheManager.bitmapPool.put(render)
+            throw exception
+        }
+
+        return newPagePart(renderingTask, render)
+    }
+
+    /**
+     * Render adjacent parts of the same page and zoom level at once, then slice the result into the parts.
+     * All the parts have the page at the same size, only the position of the page in their bitmap differs.
+     * The bitmaps of the parts are kept in [coalescedBitmaps] until they're published.
+     */
+    @Throws(PageRenderingException::class)
+    private fun proceedCoalesced(tasks: List<RenderingTask>, document: PdfFile.DocumentHandle) {
+        val diskTileCache = pdfView.diskTileCache
+        val documentKey = pdfView.pdfFile.fingerprint
+
+        // Load what the disk cache has, and the union of the rest in page pixels
+        var pending = 0
+        var unionLeft = Int.MAX_VALUE
+        var unionTop = Int.MAX_VALUE
+        var unionRight = Int.MIN_VALUE
+        var unionBottom = Int.MIN_VALUE
+        var pageWidth = 0
+        var pageHeight = 0
+        for (i in tasks.indices) {
+            val task = tasks[i]
+            coalescedBitmaps[i] = null
+            val w = Math.round(task.renderingSize.width)
+            val h = Math.round(task.renderingSize.height)
+            if (w == 0 || h == 0) {
+                deliver(i, null)
+                continue
+            }
+            val config = bitmapConfig(task)
+            val bitmap = obtainBitmap(w, h, config)
+            calculateBounds(w, h, task.renderingSize.bounds)
+            val partName = diskPartName(task, w, h, config)
+            if (bitmap == null) {
+                deliver(i, null)
+                continue
+            }
+            if (partName != null && diskTileCache?.load(documentKey, partName, bitmap) == true) {
+                deliver(i, newPagePart(task, bitmap))
+                continue
+            }
+            if (pending > 0 &&
+                (roundedRenderBounds.width() != pageWidth || roundedRenderBounds.height() != pageHeight)
+            ) {
+                // Rounding gave this part another page size, it can't be sliced from the same render
+                pdfView.cacheManager.bitmapPool.put(bitmap)
+                deliver(i, proceed(task, document))
+                continue
+            }
+            pageWidth = roundedRenderBounds.width()
+            pageHeight = roundedRenderBounds.height()
+            coalescedBitmaps[i] = bitmap
+            coalescedBounds[i]!!.set(roundedRenderBounds)
+            unionLeft = minOf(unionLeft, -roundedRenderBounds.left)
+            unionTop = minOf(unionTop, -roundedRenderBounds.top)
+            unionRight = maxOf(unionRight, -roundedRenderBounds.left + w)
+            unionBottom = maxOf(unionBottom, -roundedRenderBounds.top + h)
+            pending++
+        }
+        if (pending == 0) return
+
+        val first = tasks[0]
+        document.openPage(first.page)
+        val scratch = if (document.pageHasError(first.page)) {
+            null
+        } else {
+            obtainBitmap(unionRight - unionLeft, unionBottom - unionTop, bitmapConfig(first))
+        }
+        if (scratch == null) {
+            for (i in tasks.indices) {
+                val bitmap = coalescedBitmaps[i] ?: continue
+                pdfView.cacheManager.bitmapPool.put(bitmap)
+                coalescedBitmaps[i] = null
+                deliver(i, null)
+            }
+            return
+        }
+
+        try {
+            roundedRenderBounds.set(-unionLeft, -unionTop, -unionLeft + pageWidth, -unionTop + pageHeight)
+            val startNanos = SystemClock.elapsedRealtimeNanos()
+            document.renderPageBitmap(scratch, first.page, roundedRenderBounds, first.annotationRendering)
+            reportRenderCost(first.page, startNanos, scratch.width.toLong() * scratch.height)
+
+            for (i in tasks.indices) {
+                val bitmap = coalescedBitmaps[i] ?: continue
+                coalescedBitmaps[i] = null
+                val task = tasks[i]
+                val bounds = coalescedBounds[i]!!
+                sliceSrcRect.set(-bounds.left - unionLeft, -bounds.top - unionTop, 0, 0)
+                sliceSrcRect.right = sliceSrcRect.left + bitmap.width
+                sliceSrcRect.bottom = sliceSrcRect.top + bitmap.height
+                sliceDstRect.set(0, 0, bitmap.width, bitmap.height)
+                sliceCanvas.setBitmap(bitmap)
+                sliceCanvas.drawBitmap(scratch, sliceSrcRect, sliceDstRect, slicePaint)
+
+                roundedRenderBounds.set(bounds)
+                val partName = diskPartName(task, bitmap.width, bitmap.height, bitmap.config)
+                if (partName != null) diskTileCache?.save(documentKey, partName, bitmap)
+                deliver(i, newPagePart(task, bitmap))
+            }
+        } finally {
+            sliceCanvas.setBitmap(null)
+            pdfView.cacheManager.bitmapPool.put(scratch)
+        }
+    }
+
+    private fun reportRenderCost(page: Int, startNanos: Long, pixels: Long) {
+        pdfView.partSizeManager?.onPageRendered(page, SystemClock.elapsedRealtimeNanos() - startNanos, pixels)
+    }
+
+    private fun ensureCoalescedCapacity(count: Int) {
+        if (coalescedBounds.size < count) {
+            coalescedDelivered = BooleanArray(count)
+            coalescedBitmaps = arrayOfNulls(count)
+            coalescedBounds = Array(count) { Rect() }
+        }
+    }
+
     private fun calculateBounds(width: Int, height: Int, pageSliceBounds: RectF) {
         renderMatrix.reset()
         renderMatrix.postTranslate(-pageSliceBounds.left * width, -pageSliceBounds.top * height)
@@ -144,22 +378,22 @@ internal class RenderingHandler(
         var bounds: RectF,
     )
 
-    private data class RenderingTask(
-        var renderingSize: RenderingSize,
-        var page: Int,
-        var thumbnail: Boolean,
-        var cacheOrder: Int,
-        var bestQuality: Boolean,
-        var annotationRendering: Boolean,
-        var isForPrinting: Boolean,
-    )
-
     companion object {
         /**
-         * [Message.what] kind of message this handler processes.
+         * [Message.what] to render the next task of the [RenderingEngine].
          */
         const val MSG_RENDER_TASK: Int = 1
 
+        /**
+         * [Message.what] to open the page [Message.arg1] before any of its parts is rendered.
+         */
+        const val MSG_PRE_OPEN_PAGE: Int = 2
+
+        /**
+         * [Message.what] to close the pages not used lately, see [RenderingEngine.releasePages].
+         */
+        const val MSG_RELEASE_PAGES: Int = 3
+
         private val TAG: String = RenderingHandler::class.java.name
     }
 }
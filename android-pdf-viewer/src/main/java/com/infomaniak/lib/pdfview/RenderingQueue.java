@@ -0,0 +1,173 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of {@link RenderingTask}s ordered by band, then distance, then sequence.
+ * The priorities of the queued tasks can be changed in place, followed by {@link #heapify()}, so that moving the
+ * viewport reorders the queue without dropping and creating tasks again.
+ * <p>
+ * Not thread safe, callers synchronize.
+ */
+final class RenderingQueue {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private RenderingTask[] tasks = new RenderingTask[INITIAL_CAPACITY];
+
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the task at this position of the heap, which is not the priority order
+     */
+    RenderingTask get(int index) {
+        return tasks[index];
+    }
+
+    void add(RenderingTask task) {
+        if (size == tasks.length) {
+            tasks = Arrays.copyOf(tasks, size * 2);
+        }
+        tasks[size] = task;
+        siftUp(size++);
+    }
+
+    @Nullable
+    RenderingTask poll() {
+        if (size == 0) {
+            return null;
+        }
+        RenderingTask first = tasks[0];
+        tasks[0] = tasks[--size];
+        tasks[size] = null;
+        if (size > 0) {
+            siftDown(0);
+        }
+        return first;
+    }
+
+    /**
+     * @return true if the task was queued
+     */
+    boolean remove(RenderingTask task) {
+        for (int i = 0; i < size; i++) {
+            if (tasks[i] == task) {
+                RenderingTask last = tasks[--size];
+                tasks[size] = null;
+                if (i != size) {
+                    tasks[i] = last;
+                    siftDown(i);
+                    if (tasks[i] == last) {
+                        siftUp(i);
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void clear() {
+        Arrays.fill(tasks, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Drop the tasks which don't belong to this generation, printing tasks excepted
+     *
+     * @return the number of dropped tasks
+     */
+    int removeStale(int generation) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            RenderingTask task = tasks[i];
+            if (task.generation == generation || task.isForPrinting) {
+                tasks[kept++] = task;
+            }
+        }
+        int removed = size - kept;
+        if (removed > 0) {
+            Arrays.fill(tasks, kept, size, null);
+            size = kept;
+            heapify();
+        }
+        return removed;
+    }
+
+    /**
+     * Restore the order after the priorities of the queued tasks changed
+     */
+    void heapify() {
+        for (int i = (size >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private void siftUp(int index) {
+        RenderingTask task = tasks[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (compare(task, tasks[parent]) >= 0) {
+                break;
+            }
+            tasks[index] = tasks[parent];
+            index = parent;
+        }
+        tasks[index] = task;
+    }
+
+    private void siftDown(int index) {
+        RenderingTask task = tasks[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && compare(tasks[right], tasks[child]) < 0) {
+                child = right;
+            }
+            if (compare(task, tasks[child]) <= 0) {
+                break;
+            }
+            tasks[index] = tasks[child];
+            index = child;
+        }
+        tasks[index] = task;
+    }
+
+    private static int compare(RenderingTask first, RenderingTask second) {
+        if (first.band != second.band) {
+            return Integer.compare(first.band, second.band);
+        }
+        if (first.distance != second.distance) {
+            return Float.compare(first.distance, second.distance);
+        }
+        return Long.compare(first.sequence, second.sequence);
+    }
+}
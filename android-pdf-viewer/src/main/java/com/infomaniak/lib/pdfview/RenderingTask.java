@@ -0,0 +1,86 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import com.infomaniak.lib.pdfview.RenderingHandler.RenderingSize;
+
+/**
+ * A part or a whole page waiting in the {@link RenderingEngine} queue
+ */
+final class RenderingTask {
+
+    final RenderingSize renderingSize;
+    final int page;
+    final long key;
+    final boolean thumbnail;
+    /**
+     * Updated while the task is queued, if the part is asked for again
+     */
+    int cacheOrder;
+    final boolean bestQuality;
+    final boolean annotationRendering;
+    final boolean isForPrinting;
+
+    /**
+     * Low resolution part shown until the part of the current zoom is rendered, see
+     * {@link PDFView#setProgressiveRendering(boolean)}
+     */
+    final boolean preview;
+
+    /**
+     * Order in which the tasks were queued, to render tasks of the same priority first come first served
+     */
+    long sequence;
+
+    /**
+     * Last set of wanted parts the task belongs to, see {@link RenderingEngine#beginSet()}
+     */
+    int generation;
+
+    /**
+     * Coarse priority, lower first, see {@link RenderingEngine}
+     */
+    int band;
+
+    /**
+     * Fine priority within the band, lower first
+     */
+    float distance;
+
+    RenderingTask(
+            RenderingSize renderingSize,
+            int page,
+            long key,
+            boolean thumbnail,
+            int cacheOrder,
+            boolean bestQuality,
+            boolean annotationRendering,
+            boolean isForPrinting,
+            boolean preview
+    ) {
+        this.renderingSize = renderingSize;
+        this.page = page;
+        this.key = key;
+        this.thumbnail = thumbnail;
+        this.cacheOrder = cacheOrder;
+        this.bestQuality = bestQuality;
+        this.annotationRendering = annotationRendering;
+        this.isForPrinting = isForPrinting;
+        this.preview = preview;
+    }
+}
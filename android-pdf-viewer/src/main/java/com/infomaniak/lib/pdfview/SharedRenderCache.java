@@ -0,0 +1,119 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static com.infomaniak.lib.pdfview.util.Constants.Cache.BITMAP_POOL_FRACTION;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory budget shared by several {@link PDFView}s, for example the pages of a {@code ViewPager2}, so that the memory
+ * used by the rendered parts doesn't grow with the number of views.
+ * <p>
+ * Every view loaded with this cache gets an equal quota of the budget, recomputed when a view joins or leaves. The
+ * views also share one {@link BitmapPool}: when a view is recycled, the bitmaps of its parts go to the pool and are
+ * rendered into by the other views.
+ * <p>
+ * Must be used on the UI thread.
+ */
+public final class SharedRenderCache {
+
+    private final List<CacheManager> members = new ArrayList<>();
+
+    private final BitmapPool bitmapPool;
+
+    private long maxBytes;
+
+    /**
+     * Use the default budget of a single view, a fraction of the memory class of the app
+     */
+    public SharedRenderCache(Context context) {
+        this(CacheManager.defaultMaxBytes(context));
+    }
+
+    /**
+     * @param maxBytes maximum bytes used by the bitmaps of the rendered parts of all the views
+     */
+    public SharedRenderCache(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be greater than 0");
+        this.maxBytes = maxBytes;
+        bitmapPool = new BitmapPool(poolMaxBytes(maxBytes));
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be greater than 0");
+        this.maxBytes = maxBytes;
+        bitmapPool.setMaxBytes(poolMaxBytes(maxBytes));
+        updateQuotas();
+    }
+
+    /**
+     * @return bytes used by the bitmaps of the rendered parts of all the views
+     */
+    public long getCachedBytes() {
+        long cachedBytes = 0;
+        for (CacheManager member : members) {
+            cachedBytes += member.getCachedBytes();
+        }
+        return cachedBytes;
+    }
+
+    public int getViewsCount() {
+        return members.size();
+    }
+
+    void register(CacheManager cacheManager) {
+        if (members.contains(cacheManager)) {
+            return;
+        }
+        members.add(cacheManager);
+        cacheManager.setSharedBitmapPool(bitmapPool);
+        updateQuotas();
+    }
+
+    /**
+     * Called once the parts of the view went to the shared pool
+     */
+    void unregister(CacheManager cacheManager) {
+        if (members.remove(cacheManager)) {
+            cacheManager.setSharedBitmapPool(null);
+            updateQuotas();
+        }
+    }
+
+    private void updateQuotas() {
+        if (members.isEmpty()) {
+            return;
+        }
+        long quota = maxBytes / members.size();
+        for (CacheManager member : members) {
+            member.setMaxBytes(quota);
+        }
+    }
+
+    private static long poolMaxBytes(long maxBytes) {
+        return (long) (maxBytes * BITMAP_POOL_FRACTION);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import android.graphics.RectF;
+
+import com.infomaniak.lib.pdfview.model.PagePart;
+import com.infomaniak.lib.pdfview.model.TileKey;
+import com.infomaniak.lib.pdfview.util.Constants;
+import com.infomaniak.lib.pdfview.util.MathUtils;
+
+/**
+ * What the user of a {@link PDFView} currently sees, for {@link EvictionPolicy} to tell how useful a part is.
+ * Distances are in pixels at the current zoom. Must be used on the UI thread.
+ */
+public final class Viewport {
+
+    private final PDFView pdfView;
+
+    private final RectF partBounds = new RectF();
+
+    Viewport(PDFView pdfView) {
+        this.pdfView = pdfView;
+    }
+
+    public float getWidth() {
+        return pdfView.getWidth();
+    }
+
+    public float getHeight() {
+        return pdfView.getHeight();
+    }
+
+    /**
+     * @return distance between the part and the visible area, 0 if the part is visible
+     */
+    public float getDistance(PagePart part) {
+        return getDistance(part.getPage(), part.getPageRelativeBounds());
+    }
+
+    /**
+     * @param pageRelativeBounds bounds of the part in the page, between 0 and 1
+     * @return distance between the part and the visible area, 0 if the part is visible
+     */
+    float getDistance(int page, RectF pageRelativeBounds) {
+        return getDistance(page, pageRelativeBounds, pdfView.getCurrentXOffset(), pdfView.getCurrentYOffset());
+    }
+
+    /**
+     * Same as {@link #getDistance(int, RectF)}, if the view was scrolled to the given offsets
+     */
+    float getDistance(int page, RectF pageRelativeBounds, float xOffset, float yOffset) {
+        if (!mapToView(page, pageRelativeBounds, xOffset, yOffset)) {
+            return 0;
+        }
+        float dx = Math.max(0, Math.max(-partBounds.right, partBounds.left - getWidth()));
+        float dy = Math.max(0, Math.max(-partBounds.bottom, partBounds.top - getHeight()));
+        return (float) Math.hypot(dx, dy);
+    }
+
+    /**
+     * @param pageRelativeBounds bounds of the part in the page, between 0 and 1
+     * @return distance between the centre of the part and the centre of the visible area
+     */
+    float getDistanceToCenter(int page, RectF pageRelativeBounds) {
+        return getDistanceToCenter(page, pageRelativeBounds, pdfView.getCurrentXOffset(), pdfView.getCurrentYOffset());
+    }
+
+    /**
+     * Same as {@link #getDistanceToCenter(int, RectF)}, if the view was scrolled to the given offsets
+     */
+    float getDistanceToCenter(int page, RectF pageRelativeBounds, float xOffset, float yOffset) {
+        if (!mapToView(page, pageRelativeBounds, xOffset, yOffset)) {
+            return 0;
+        }
+        return (float) Math.hypot(partBounds.centerX() - getWidth() / 2, partBounds.centerY() - getHeight() / 2);
+    }
+
+    /**
+     * Set {@link #partBounds} to the bounds of the part relative to the area visible at the given offsets, at the
+     * current zoom
+     *
+     * @return false if there is no document
+     */
+    private boolean mapToView(int page, RectF pageRelativeBounds, float xOffset, float yOffset) {
+        PdfFile pdfFile = pdfView.pdfFile;
+        if (pdfFile == null) {
+            return false;
+        }
+        float zoom = pdfView.getZoom();
+        float pageX;
+        float pageY;
+        if (pdfView.isSwipeVertical()) {
+            pageX = pdfFile.getSecondaryPageOffset(page, zoom);
+            pageY = pdfFile.getPageOffset(page, zoom);
+        } else {
+            pageX = pdfFile.getPageOffset(page, zoom);
+            pageY = pdfFile.getSecondaryPageOffset(page, zoom);
+        }
+        pageX += xOffset;
+        pageY += yOffset;
+        float pageWidth = pdfFile.getPageWidth(page) * zoom;
+        float pageHeight = pdfFile.getPageHeight(page) * zoom;
+        partBounds.set(
+                pageX + pageRelativeBounds.left * pageWidth,
+                pageY + pageRelativeBounds.top * pageHeight,
+                pageX + pageRelativeBounds.right * pageWidth,
+                pageY + pageRelativeBounds.bottom * pageHeight
+        );
+        return true;
+    }
+
+    /**
+     * @return true if the user is scrolling towards the part
+     */
+    public boolean isAhead(PagePart part) {
+        PDFView.ScrollDir scrollDir = pdfView.getScrollDir();
+        if (scrollDir == PDFView.ScrollDir.NONE || pdfView.pdfFile == null) {
+            return false;
+        }
+        int currentPage = pdfView.getCurrentPage();
+        return scrollDir == PDFView.ScrollDir.END ? part.getPage() >= currentPage : part.getPage() <= currentPage;
+    }
+
+    /**
+     * @return how many times the zoom doubled or halved between the zoom level the part was rendered for and the
+     * current one, 0 if the part has the current zoom level
+     */
+    public float getZoomMismatch(PagePart part) {
+        PdfFile pdfFile = pdfView.pdfFile;
+        if (pdfFile == null) {
+            return 0;
+        }
+        float zoom = pdfView.getRenderingZoom();
+        float scaledPageHeight = pdfFile.getPageHeight(part.getPage()) * zoom;
+        float partSize = pdfView.partSizeManager == null
+                ? Constants.PART_SIZE
+                : pdfView.partSizeManager.getPartSize(part.getPage(), zoom);
+        int currentRows = MathUtils.limit(
+                MathUtils.ceil(scaledPageHeight / partSize), 1, TileKey.MAX_GRID_SIZE
+        );
+        // The rows times the part size give the page height the part was rendered for
+        float partHeight = TileKey.rows(part.getKey()) * PartSizeManager.getSize(TileKey.sizeLevel(part.getKey()));
+        return Math.abs((float) (Math.log(partHeight / (currentRows * partSize)) / Math.log(2)));
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import com.infomaniak.lib.pdfview.model.PagePart;
+
+/**
+ * Scores parts by their distance from the viewport, in viewport sizes. Parts in the scroll direction count as
+ * closer, since the user is going there, and every zoom level between the part and the current zoom counts as
+ * another viewport away.
+ */
+final class ViewportDistanceEvictionPolicy implements EvictionPolicy {
+
+    /**
+     * Distance of the parts in the scroll direction is multiplied by this
+     */
+    private static final float AHEAD_FACTOR = 0.5f;
+
+    /**
+     * Distance added for every zoom level doubling between the part and the current zoom
+     */
+    private static final float ZOOM_MISMATCH_DISTANCE = 1f;
+
+    @Override
+    public float getScore(PagePart part, Viewport viewport) {
+        float viewportSize = Math.max(1, Math.max(viewport.getWidth(), viewport.getHeight()));
+        float distance = viewport.getDistance(part) / viewportSize;
+        if (viewport.isAhead(part)) {
+            distance *= AHEAD_FACTOR;
+        }
+        distance += viewport.getZoomMismatch(part) * ZOOM_MISMATCH_DISTANCE;
+        return -distance;
+    }
+}
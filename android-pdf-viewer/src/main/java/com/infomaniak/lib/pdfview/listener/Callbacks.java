@@ -85,6 +85,11 @@ public class Callbacks {
      */
     private LinkHandler linkHandler;
 
+    /**
+     * Call back object to call when memory was released on the system demand
+     */
+    private OnMemoryTrimListener onMemoryTrimListener;
+
     public void setOnReadyForPrinting(OnReadyForPrintingListener onReadyForPrintingListener) {
         this.onReadyForPrintingListener = onReadyForPrintingListener;
     }
@@ -219,6 +224,16 @@ public class Callbacks {
         }
     }
 
+    public void setOnMemoryTrim(OnMemoryTrimListener onMemoryTrimListener) {
+        this.onMemoryTrimListener = onMemoryTrimListener;
+    }
+
+    public void callOnMemoryTrim(int level, long freedBytes) {
+        if (onMemoryTrimListener != null) {
+            onMemoryTrimListener.onMemoryTrimmed(level, freedBytes);
+        }
+    }
+
     public void clear() {
         // Not clearing onAttach and onDetach listeners because those are called before view initialization
         onLoadCompleteListener = null;
@@ -232,5 +247,6 @@ public class Callbacks {
         onTapListener = null;
         onLongPressListener = null;
         linkHandler = null;
+        onMemoryTrimListener = null;
     }
 }
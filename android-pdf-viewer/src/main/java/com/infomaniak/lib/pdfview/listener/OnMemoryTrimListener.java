@@ -0,0 +1,30 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview.listener;
+
+public interface OnMemoryTrimListener {
+
+    /**
+     * Called when the view released memory because the system asked for it,
+     * see {@link android.content.ComponentCallbacks2#onTrimMemory(int)}
+     *
+     * @param level      the trim memory level given by the system
+     * @param freedBytes bytes of bitmaps released
+     */
+    void onMemoryTrimmed(int level, long freedBytes);
+}
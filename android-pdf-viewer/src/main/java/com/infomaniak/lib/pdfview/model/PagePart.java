@@ -30,13 +30,31 @@ public class PagePart {
 
     private int cacheOrder;
 
-    public PagePart(int page, Bitmap renderedBitmap, RectF pageRelativeBounds, boolean thumbnail, int cacheOrder) {
+    /**
+     * Low resolution stand-in for the parts of a sharper level, rendered without annotations
+     */
+    private boolean preview;
+
+    /**
+     * Tile identity, see {@link TileKey}
+     */
+    private long key;
+
+    public PagePart(int page, Bitmap renderedBitmap, RectF pageRelativeBounds, boolean thumbnail, int cacheOrder,
+                    long key) {
         super();
         this.page = page;
         this.renderedBitmap = renderedBitmap;
         this.pageRelativeBounds = pageRelativeBounds;
         this.thumbnail = thumbnail;
         this.cacheOrder = cacheOrder;
+        this.key = key;
+    }
+
+    public PagePart(int page, Bitmap renderedBitmap, RectF pageRelativeBounds, boolean thumbnail, int cacheOrder,
+                    long key, boolean preview) {
+        this(page, renderedBitmap, pageRelativeBounds, thumbnail, cacheOrder, key);
+        this.preview = preview;
     }
 
     public int getCacheOrder() {
@@ -63,6 +81,14 @@ public class PagePart {
         return thumbnail;
     }
 
+    public long getKey() {
+        return key;
+    }
+
+    public boolean isPreview() {
+        return preview;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof PagePart)) {
@@ -70,11 +96,12 @@ public class PagePart {
         }
 
         PagePart part = (PagePart) obj;
-        return part.getPage() == page
-                && part.getPageRelativeBounds().left == pageRelativeBounds.left
-                && part.getPageRelativeBounds().right == pageRelativeBounds.right
-                && part.getPageRelativeBounds().top == pageRelativeBounds.top
-                && part.getPageRelativeBounds().bottom == pageRelativeBounds.bottom;
+        return part.key == key && part.thumbnail == thumbnail;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (key ^ (key >>> 32)) + (thumbnail ? 1 : 0);
     }
 
 }
@@ -0,0 +1,106 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview.model;
+
+/**
+ * Identity of a rendered tile, packed in a primitive long so that cache lookups don't allocate.
+ * <p>
+ * A tile is identified by its page, the size of the parts of the page, the grid the page was split into (which depends
+ * on the zoom level, and thus acts as the zoom bucket together with the part size) and its row and column in that grid.
+ * Thumbnails have their own bit, so that they're never mistaken for the single part of a 1x1 grid.
+ * Layout, from the most significant bits:
+ * page (20 bits), thumbnail (1 bit), part size level (3 bits), grid rows (10 bits), grid cols (10 bits), row (10 bits),
+ * col (10 bits).
+ */
+public final class TileKey {
+
+    private static final int PAGE_BITS = 20;
+    private static final int SIZE_BITS = 3;
+    private static final int GRID_BITS = 10;
+
+    private static final long PAGE_MASK = (1L << PAGE_BITS) - 1;
+    private static final long SIZE_MASK = (1L << SIZE_BITS) - 1;
+    private static final long GRID_MASK = (1L << GRID_BITS) - 1;
+
+    private static final int COL_SHIFT = 0;
+    private static final int ROW_SHIFT = COL_SHIFT + GRID_BITS;
+    private static final int COLS_SHIFT = ROW_SHIFT + GRID_BITS;
+    private static final int ROWS_SHIFT = COLS_SHIFT + GRID_BITS;
+    private static final int SIZE_SHIFT = ROWS_SHIFT + GRID_BITS;
+    private static final int THUMBNAIL_SHIFT = SIZE_SHIFT + SIZE_BITS;
+    private static final int PAGE_SHIFT = THUMBNAIL_SHIFT + 1;
+
+    private static final long THUMBNAIL_BIT = 1L << THUMBNAIL_SHIFT;
+
+    /**
+     * Biggest number of rows or columns a page grid can have and still be uniquely identified.
+     */
+    public static final int MAX_GRID_SIZE = (int) GRID_MASK;
+
+    private TileKey() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @param sizeLevel level of the part size, two parts of the same grid but rendered with another part size are
+     *                  rendered at another zoom
+     */
+    public static long of(int page, int sizeLevel, int rows, int cols, int row, int col) {
+        return ((page & PAGE_MASK) << PAGE_SHIFT)
+                | ((sizeLevel & SIZE_MASK) << SIZE_SHIFT)
+                | ((rows & GRID_MASK) << ROWS_SHIFT)
+                | ((cols & GRID_MASK) << COLS_SHIFT)
+                | ((row & GRID_MASK) << ROW_SHIFT)
+                | ((col & GRID_MASK) << COL_SHIFT);
+    }
+
+    /**
+     * Thumbnails always cover the whole page, so the page alone identifies them.
+     */
+    public static long thumbnail(int page) {
+        return of(page, 0, 1, 1, 0, 0) | THUMBNAIL_BIT;
+    }
+
+    public static boolean isThumbnail(long key) {
+        return (key & THUMBNAIL_BIT) != 0;
+    }
+
+    public static int page(long key) {
+        return (int) ((key >>> PAGE_SHIFT) & PAGE_MASK);
+    }
+
+    public static int sizeLevel(long key) {
+        return (int) ((key >>> SIZE_SHIFT) & SIZE_MASK);
+    }
+
+    public static int rows(long key) {
+        return (int) ((key >>> ROWS_SHIFT) & GRID_MASK);
+    }
+
+    public static int cols(long key) {
+        return (int) ((key >>> COLS_SHIFT) & GRID_MASK);
+    }
+
+    public static int row(long key) {
+        return (int) ((key >>> ROW_SHIFT) & GRID_MASK);
+    }
+
+    public static int col(long key) {
+        return (int) ((key >>> COL_SHIFT) & GRID_MASK);
+    }
+}
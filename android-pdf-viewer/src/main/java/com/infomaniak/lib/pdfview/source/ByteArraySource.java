@@ -17,6 +17,7 @@ package com.infomaniak.lib.pdfview.source;
 
 import android.content.Context;
 
+import com.infomaniak.lib.pdfview.util.Util;
 import com.shockwave.pdfium.PdfDocument;
 import com.shockwave.pdfium.PdfiumCore;
 
@@ -26,6 +27,8 @@ public class ByteArraySource implements DocumentSource {
 
     private byte[] data;
 
+    private String fingerprint;
+
     public ByteArraySource(byte[] data) {
         this.data = data;
     }
@@ -34,4 +37,18 @@ public class ByteArraySource implements DocumentSource {
     public PdfDocument createDocument(Context context, PdfiumCore core, String password) throws IOException {
         return core.newDocument(data, password);
     }
+
+    @Override
+    public String getFingerprint() {
+        // Hashing the whole document takes a while, it's only done once for all the loads of this source
+        if (fingerprint == null) {
+            fingerprint = Util.sha256Hex(data);
+        }
+        return fingerprint;
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return true;
+    }
 }
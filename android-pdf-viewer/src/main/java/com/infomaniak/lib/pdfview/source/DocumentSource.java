@@ -24,4 +24,23 @@ import java.io.IOException;
 
 public interface DocumentSource {
     PdfDocument createDocument(Context context, PdfiumCore core, String password) throws IOException;
+
+    /**
+     * Identity of the document content, which must change whenever the content changes.
+     * Called off the UI thread.
+     *
+     * @return null if the document can't be identified, its rendered parts are then never cached on disk
+     */
+    default String getFingerprint() {
+        return null;
+    }
+
+    /**
+     * Whether each document created from this source holds its own copy of the whole content in memory. The parts of
+     * such documents are then rendered on a single thread, see
+     * {@link com.infomaniak.lib.pdfview.PDFView#setRenderingThreads(int)}.
+     */
+    default boolean isInMemory() {
+        return false;
+    }
 }
@@ -37,4 +37,9 @@ public class FileSource implements DocumentSource {
         ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
         return core.newDocument(pfd, password);
     }
+
+    @Override
+    public String getFingerprint() {
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
 }
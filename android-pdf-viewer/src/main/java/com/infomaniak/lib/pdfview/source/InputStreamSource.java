@@ -36,4 +36,9 @@ public class InputStreamSource implements DocumentSource {
     public PdfDocument createDocument(Context context, PdfiumCore core, String password) throws IOException {
         return core.newDocument(Util.toByteArray(inputStream), password);
     }
+
+    @Override
+    public boolean isInMemory() {
+        return true;
+    }
 }
@@ -38,6 +38,44 @@ object Constants {
      */
     const val PART_SIZE = 256.0f
 
+    /**
+     * The size of the parts of the pages which are slow to render, like scans (default 128).
+     */
+    const val MIN_PART_SIZE = 128.0f
+
+    /**
+     * The size of the parts of the pages which are fast to render, like text (default 512).
+     */
+    const val MAX_PART_SIZE = 512.0f
+
+    /**
+     * How long the rendering of a part should take, in nanoseconds (default 20 ms). The size of the parts of each page
+     * is chosen between [MIN_PART_SIZE] and [MAX_PART_SIZE] from its measured render time.
+     */
+    const val PART_RENDER_TARGET_NANOS = 20_000_000f
+
+    /**
+     * Maximum pixels rendered at once for adjacent parts, which are then sliced (default 16 parts of 256 x 256).
+     */
+    const val MAX_COALESCED_PIXELS = 1024 * 1024
+
+    /**
+     * In progressive rendering, the preview parts are rendered for a grid this much coarser than the one of the zoom,
+     * so at this fraction of the resolution (default 0.5).
+     */
+    const val PROGRESSIVE_PREVIEW_RATIO = 0.5f
+
+    /**
+     * Parts are rendered for zoom levels that are powers of this factor (default √2), and scaled to the actual zoom
+     * when drawn, so that small zoom changes reuse the cached parts.
+     */
+    const val ZOOM_BUCKET_FACTOR = 1.4142135f
+
+    /**
+     * A zoom at most this much above a zoom bucket is rendered for that bucket rather than the next one (default 2%).
+     */
+    const val ZOOM_BUCKET_TOLERANCE = 0.02f
+
     /**
      * Part of document above and below screen that should be preloaded, in dp.
      */
@@ -45,10 +83,141 @@ object Constants {
 
     object Cache {
         /**
-         * The size of the cache (number of bitmaps kept).
+         * The expected number of cached parts, used to size the cache index. The cache itself is bounded in bytes.
          */
         const val CACHE_SIZE = 120
+
+        /**
+         * The expected number of cached thumbnails, used to size the thumbnails index.
+         */
         const val THUMBNAILS_CACHE_SIZE = 8
+
+        /**
+         * Part of the app memory class used by the rendered parts when no budget is given (default 1/8).
+         */
+        const val MEMORY_CLASS_FRACTION = 0.125f
+
+        /**
+         * Lowest default budget for the rendered parts, in bytes, so that at least a screen of parts can be kept.
+         */
+        const val MIN_MEMORY_BUDGET = 8L * 1024 * 1024
+
+        /**
+         * Part of the parts memory budget that evicted bitmaps can keep in the pool to be rendered into again.
+         */
+        const val BITMAP_POOL_FRACTION = 0.25f
+
+        /**
+         * Part of the parts memory budget that the thumbnails can use.
+         */
+        const val THUMBNAILS_MEMORY_FRACTION = 0.25f
+
+        /**
+         * Part of the app memory class that the pages rendered for printing can use. Pages are rendered with a lower
+         * quality than [THUMBNAIL_RATIO_PRINTING] when the whole document wouldn't fit otherwise.
+         */
+        const val PRINTING_MEMORY_CLASS_FRACTION = 0.25f
+
+        /**
+         * Factor applied to the printing quality when a page still doesn't fit in the printing budget, all the pages
+         * are then rendered again with the lower quality.
+         */
+        const val PRINTING_RATIO_RETRY_FACTOR = 0.8f
+
+        /**
+         * Maximum bytes used on disk by the rendered parts of all documents, when the disk cache is enabled.
+         */
+        const val DISK_CACHE_SIZE = 64L * 1024 * 1024
+
+        /**
+         * Maximum parts waiting to be written to the disk cache. Parts rendered while the queue is full aren't saved.
+         */
+        const val DISK_CACHE_WRITE_QUEUE_SIZE = 16
+
+        /**
+         * Maximum documents whose page sizes are kept on disk, when the layout cache is enabled.
+         */
+        const val LAYOUT_CACHE_FILES = 256
+
+        /**
+         * Under critical memory pressure, thumbnails are rendered with their ratio multiplied by this.
+         */
+        const val LOW_MEMORY_THUMBNAIL_RATIO_FACTOR = 0.5f
+
+        /**
+         * How long parts are rendered with [android.graphics.Bitmap.Config.RGB_565] and thumbnails with a lower ratio
+         * after a critical memory pressure, in milliseconds.
+         */
+        const val LOW_MEMORY_DURATION = 30_000L
+    }
+
+    object Prefetch {
+        /**
+         * Screen lengths loaded ahead of the viewport, in the scroll direction, when not scrolling (default 0.5).
+         */
+        const val DEFAULT_SCREENS = 0.5f
+
+        /**
+         * The window ahead grows with the scroll velocity, to cover where the viewport will be this long after, in
+         * seconds.
+         */
+        const val LOOKAHEAD_SECONDS = 0.5f
+
+        /**
+         * Maximum screen lengths the scroll velocity adds to the window ahead.
+         */
+        const val MAX_VELOCITY_SCREENS = 2f
+
+        /**
+         * The scroll velocity is considered null when the view didn't move for this long, in milliseconds.
+         */
+        const val VELOCITY_TIMEOUT = 100L
+    }
+
+    object PageHandles {
+        /**
+         * Maximum pages a rendering document keeps opened. pdfium only closes pages with their document, so past this
+         * the document is opened again with only its most recently used pages.
+         */
+        const val MAX_OPENED_PAGES = 48
+
+        /**
+         * Most recently used pages opened again after a rendering document released its pages.
+         */
+        const val KEPT_OPENED_PAGES = 8
+
+        /**
+         * Pages opened ahead of the current page, in the scroll direction, before any of their parts is rendered.
+         */
+        const val PRE_OPENED_PAGES = 2
+
+        /**
+         * A rendering document which didn't render anything for this long opens again with only its
+         * [KEPT_OPENED_PAGES] most recently used pages, in milliseconds.
+         */
+        const val IDLE_PAGES_TIMEOUT = 10_000L
+    }
+
+    object LazyLayout {
+        /**
+         * Documents with fewer pages have all their page sizes measured before being shown, even in lazy mode.
+         */
+        const val MIN_PAGES = 500
+
+        /**
+         * Pages measured around the first shown page before the document is shown, enough to fill the screen.
+         */
+        const val EXACT_PAGES = 16
+
+        /**
+         * Pages measured across the document to estimate the size of the pages not measured yet.
+         */
+        const val SAMPLED_PAGES = 16
+
+        /**
+         * Pages measured in the background between two updates of the layout.
+         */
+        const val BATCH_PAGES = 256
     }
 
     object Pinch {
@@ -21,6 +21,8 @@ import android.util.TypedValue;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Utility class for common operations in the PDF viewer, such as unit conversion and stream handling.
@@ -69,4 +71,24 @@ public final class Util {
             return outputStream.toByteArray();
         }
     }
+
+    /**
+     * Hashes data with SHA-256.
+     *
+     * @param data The data to hash.
+     * @return The hash as a lowercase hexadecimal string.
+     */
+    public static String sha256Hex(byte[] data) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
 }
\ No newline at end of file
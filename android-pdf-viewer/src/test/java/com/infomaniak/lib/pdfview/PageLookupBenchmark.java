@@ -0,0 +1,96 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static org.junit.Assert.assertEquals;
+
+import com.infomaniak.lib.pdfview.util.FitPolicy;
+import com.shockwave.pdfium.util.Size;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Measures the page lookup of the layout, a binary search, against the linear scan it replaced, on a document with
+ * many pages. The timings are printed, the test only fails if both lookups disagree.
+ */
+public class PageLookupBenchmark {
+
+    private static final int PAGES_COUNT = 100_000;
+    private static final int LOOKUPS = 2_000;
+    private static final int WARM_UP_RUNS = 2;
+    private static final int RUNS = 5;
+    private static final float ZOOM = 1.5f;
+
+    @Test
+    public void pageLookup() {
+        Random random = new Random(42);
+        Size[] pageSizes = new Size[PAGES_COUNT];
+        for (int i = 0; i < PAGES_COUNT; i++) {
+            pageSizes[i] = random.nextInt(10) == 0 ? new Size(842, 595) : new Size(595, 842);
+        }
+        Size viewSize = new Size(1080, 1920);
+        DisplayOptions displayOptions =
+                new DisplayOptions(true, new PDFSpacing(20, 0, 0, false), false, viewSize, FitPolicy.WIDTH);
+        Size maxWidthPageSize = new Size(842, 595);
+        Size maxHeightPageSize = new Size(595, 842);
+        PdfFile.Layout layout = new PdfFile.Layout(displayOptions, pageSizes, maxWidthPageSize, maxHeightPageSize,
+                viewSize);
+        PdfFileLayoutTest.LinearLayout linearLayout =
+                new PdfFileLayoutTest.LinearLayout(displayOptions, pageSizes, maxWidthPageSize, maxHeightPageSize);
+
+        // Within the pages, since float rounding at such offsets can move the boundaries of both lookups apart
+        float[] offsets = new float[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            int page = random.nextInt(PAGES_COUNT);
+            offsets[i] = (layout.pageOffsets[page] + layout.pageHeights[page] / 2) * ZOOM;
+        }
+        for (float offset : offsets) {
+            assertEquals(linearLayout.getPageAtOffset(offset, ZOOM), layout.getPageAtOffset(offset, ZOOM));
+        }
+
+        long binaryNanos = Long.MAX_VALUE;
+        long linearNanos = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            for (float offset : offsets) {
+                checksum += layout.getPageAtOffset(offset, ZOOM);
+            }
+            long binaryRunNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (float offset : offsets) {
+                checksum -= linearLayout.getPageAtOffset(offset, ZOOM);
+            }
+            long linearRunNanos = System.nanoTime() - start;
+
+            if (run >= WARM_UP_RUNS) {
+                binaryNanos = Math.min(binaryNanos, binaryRunNanos);
+                linearNanos = Math.min(linearNanos, linearRunNanos);
+            }
+        }
+        // Both lookups return the same pages, which also keeps the JIT from dropping them
+        assertEquals(0, checksum);
+
+        System.out.printf("Page lookup at %d pages: binary search %.3f us, linear scan %.3f us, %.0fx faster%n",
+                PAGES_COUNT, binaryNanos / 1000f / LOOKUPS, linearNanos / 1000f / LOOKUPS,
+                (float) linearNanos / Math.max(1, binaryNanos));
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.infomaniak.lib.pdfview.util.FitPolicy;
+import com.infomaniak.lib.pdfview.util.PageSizeCalculator;
+import com.shockwave.pdfium.util.Size;
+import com.shockwave.pdfium.util.SizeF;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks the layout against the linear computations it replaced, which are ported below as they were
+ */
+public class PdfFileLayoutTest {
+
+    private static final float DELTA = 1e-3f;
+    private static final float[] ZOOMS = {0.5f, 1f, 1.7f, 3f};
+
+    private static final Size VIEW_SIZE = new Size(1080, 1920);
+    private static final Size[] PAGE_SIZES = {
+            new Size(595, 842),
+            new Size(842, 595),
+            new Size(612, 792),
+            new Size(595, 842),
+            new Size(300, 1200),
+            new Size(1200, 300),
+            new Size(595, 842),
+    };
+
+    @Test
+    public void verticalWithSpacing() {
+        check(new DisplayOptions(true, new PDFSpacing(20, 40, 60, false), false, VIEW_SIZE, FitPolicy.WIDTH));
+    }
+
+    @Test
+    public void horizontalWithSpacing() {
+        check(new DisplayOptions(false, new PDFSpacing(20, 40, 60, false), false, VIEW_SIZE, FitPolicy.HEIGHT));
+    }
+
+    @Test
+    public void withoutSpacing() {
+        check(new DisplayOptions(true, new PDFSpacing(0, 0, 0, false), false, VIEW_SIZE, FitPolicy.BOTH));
+    }
+
+    @Test
+    public void fitEachPage() {
+        check(new DisplayOptions(true, new PDFSpacing(12, 0, 30, false), true, VIEW_SIZE, FitPolicy.WIDTH));
+        check(new DisplayOptions(false, new PDFSpacing(12, 30, 0, false), true, VIEW_SIZE, FitPolicy.BOTH));
+    }
+
+    @Test
+    public void autoSpacing() {
+        check(new DisplayOptions(true, new PDFSpacing(10, 0, 0, true), false, VIEW_SIZE, FitPolicy.BOTH));
+        check(new DisplayOptions(false, new PDFSpacing(10, 0, 0, true), true, VIEW_SIZE, FitPolicy.BOTH));
+        check(new DisplayOptions(true, new PDFSpacing(0, 0, 0, true), true, VIEW_SIZE, FitPolicy.WIDTH));
+    }
+
+    @Test
+    public void singlePage() {
+        Size[] pageSizes = {new Size(595, 842)};
+        check(new DisplayOptions(true, new PDFSpacing(20, 40, 60, false), false, VIEW_SIZE, FitPolicy.WIDTH),
+                pageSizes);
+        check(new DisplayOptions(true, new PDFSpacing(20, 0, 0, true), false, VIEW_SIZE, FitPolicy.BOTH), pageSizes);
+    }
+
+    @Test
+    public void randomPageSizes() {
+        Random random = new Random(42);
+        for (int run = 0; run < 20; run++) {
+            Size[] pageSizes = new Size[1 + random.nextInt(200)];
+            for (int i = 0; i < pageSizes.length; i++) {
+                pageSizes[i] = new Size(100 + random.nextInt(2000), 100 + random.nextInt(2000));
+            }
+            PDFSpacing spacing = new PDFSpacing(random.nextInt(50), random.nextInt(50), random.nextInt(50),
+                    random.nextBoolean());
+            FitPolicy fitPolicy = FitPolicy.values()[random.nextInt(FitPolicy.values().length)];
+            check(new DisplayOptions(random.nextBoolean(), spacing, random.nextBoolean(), VIEW_SIZE, fitPolicy),
+                    pageSizes);
+        }
+    }
+
+    @Test
+    public void scaled() {
+        DisplayOptions displayOptions =
+                new DisplayOptions(true, new PDFSpacing(20, 40, 60, false), false, VIEW_SIZE, FitPolicy.WIDTH);
+        PdfFile.Layout layout = new PdfFile.Layout(displayOptions, PAGE_SIZES, new Size(1200, 300),
+                new Size(300, 1200), VIEW_SIZE);
+        PdfFile.Layout scaled = layout.scaled(0.5f).scaled(3f);
+
+        assertEquals(1.5f, scaled.scale, DELTA);
+        assertEquals(layout.documentLength * 1.5f, scaled.documentLength, DELTA);
+        assertEquals(layout.maxWidthPageSize.getWidth() * 1.5f, scaled.maxWidthPageSize.getWidth(), DELTA);
+        for (float offset = -100; offset < layout.documentLength + 100; offset += 7.3f) {
+            assertEquals(layout.getPageAtOffset(offset, 1f), scaled.getPageAtOffset(offset * 1.5f, 1f));
+        }
+    }
+
+    private static void check(DisplayOptions displayOptions) {
+        check(displayOptions, PAGE_SIZES);
+    }
+
+    private static void check(DisplayOptions displayOptions, Size[] pageSizes) {
+        Size maxWidthPageSize = new Size(0, 0);
+        Size maxHeightPageSize = new Size(0, 0);
+        for (Size pageSize : pageSizes) {
+            if (pageSize.getWidth() > maxWidthPageSize.getWidth()) {
+                maxWidthPageSize = pageSize;
+            }
+            if (pageSize.getHeight() > maxHeightPageSize.getHeight()) {
+                maxHeightPageSize = pageSize;
+            }
+        }
+        PdfFile.Layout layout = new PdfFile.Layout(displayOptions, pageSizes, maxWidthPageSize, maxHeightPageSize,
+                VIEW_SIZE);
+        LinearLayout expected = new LinearLayout(displayOptions, pageSizes, maxWidthPageSize, maxHeightPageSize);
+
+        assertArrayEquals(expected.pageOffsets, layout.pageOffsets, DELTA);
+        assertEquals(expected.documentLength, layout.documentLength, DELTA);
+        for (int i = 0; i < pageSizes.length; i++) {
+            assertEquals(expected.getPageSpacing(i), layout.pageSpacing[i], DELTA);
+        }
+
+        for (float zoom : ZOOMS) {
+            float documentLength = layout.documentLength * zoom;
+            for (float offset = -100; offset < documentLength + 100; offset += 7.3f) {
+                assertEquals("offset " + offset + " at zoom " + zoom,
+                        expected.getPageAtOffset(offset, zoom), layout.getPageAtOffset(offset, zoom));
+            }
+            // The page starts exactly on its boundary, as the linear scan only passed the pages strictly before
+            for (int i = 1; i < pageSizes.length; i++) {
+                float start = layout.pageStarts[i] * zoom;
+                if (layout.pageStarts[i] > layout.pageStarts[i - 1]) {
+                    assertEquals(i - 1, layout.getPageAtOffset(start, zoom));
+                }
+                assertEquals(i, layout.getPageAtOffset(Math.nextUp(start), zoom));
+            }
+        }
+    }
+
+    /**
+     * The linear page offsets and page lookup used before the layout, kept as the reference
+     */
+    static final class LinearLayout {
+
+        private final DisplayOptions displayOptions;
+        private final SizeF[] pageSizes;
+        private final float[] pageSpacing;
+        private final float[] pageOffsets;
+        private float documentLength;
+
+        LinearLayout(DisplayOptions displayOptions, Size[] originalPageSizes, Size originalMaxWidthPageSize,
+                Size originalMaxHeightPageSize) {
+            this.displayOptions = displayOptions;
+            int pagesCount = originalPageSizes.length;
+            PageSizeCalculator calculator = new PageSizeCalculator(
+                    displayOptions.getPageFitPolicy(),
+                    originalMaxWidthPageSize,
+                    originalMaxHeightPageSize,
+                    displayOptions.getViewSize(),
+                    displayOptions.getFitEachPage()
+            );
+            pageSizes = new SizeF[pagesCount];
+            for (int i = 0; i < pagesCount; i++) {
+                pageSizes[i] = calculator.calculate(originalPageSizes[i]);
+            }
+            pageSpacing = new float[pagesCount];
+            pageOffsets = new float[pagesCount];
+            if (displayOptions.getPdfSpacing().getAutoSpacing()) {
+                prepareAutoSpacing(displayOptions.getViewSize());
+            }
+            prepareDocLen();
+            preparePagesOffset();
+        }
+
+        private void prepareAutoSpacing(Size viewSize) {
+            for (int i = 0; i < pageSizes.length; i++) {
+                SizeF pageSize = pageSizes[i];
+                float spacing = Math.max(0, displayOptions.isVertical() ? viewSize.getHeight() - pageSize.getHeight() :
+                        viewSize.getWidth() - pageSize.getWidth());
+                if (i < pageSizes.length - 1) {
+                    spacing += displayOptions.getPdfSpacing().getPageSeparatorSpacing();
+                }
+                pageSpacing[i] = spacing;
+            }
+        }
+
+        private void prepareDocLen() {
+            float length = 0;
+            for (int i = 0; i < pageSizes.length; i++) {
+                SizeF pageSize = pageSizes[i];
+                length += displayOptions.isVertical() ? pageSize.getHeight() : pageSize.getWidth();
+                if (displayOptions.getPdfSpacing().getAutoSpacing()) {
+                    length += pageSpacing[i];
+                } else if (i < pageSizes.length - 1) {
+                    length += displayOptions.getPdfSpacing().getPageSeparatorSpacing();
+                }
+            }
+            documentLength = length + displayOptions.getPdfSpacing().getStartSpacing()
+                    + displayOptions.getPdfSpacing().getEndSpacing();
+        }
+
+        private void preparePagesOffset() {
+            float offset = 0;
+            for (int i = 0; i < pageSizes.length; i++) {
+                SizeF pageSize = pageSizes[i];
+                float size = displayOptions.isVertical() ? pageSize.getHeight() : pageSize.getWidth();
+                if (displayOptions.getPdfSpacing().getAutoSpacing()) {
+                    offset += pageSpacing[i] / 2f;
+                    if (i == 0) {
+                        offset -= displayOptions.getPdfSpacing().getPageSeparatorSpacing() / 2f;
+                    } else if (i == pageSizes.length - 1) {
+                        offset += displayOptions.getPdfSpacing().getPageSeparatorSpacing() / 2f;
+                    }
+                    pageOffsets[i] = offset;
+                    offset += size + pageSpacing[i] / 2f;
+                } else {
+                    if (i == 0) {
+                        offset += displayOptions.getPdfSpacing().getStartSpacing();
+                    }
+                    pageOffsets[i] = offset;
+                    offset += size + displayOptions.getPdfSpacing().getPageSeparatorSpacing();
+                }
+            }
+        }
+
+        float getPageSpacing(int pageIndex) {
+            if (displayOptions.getPdfSpacing().getAutoSpacing()) {
+                return pageSpacing[pageIndex];
+            }
+            return displayOptions.getPdfSpacing().getPageSeparatorSpacing();
+        }
+
+        int getPageAtOffset(float offset, float zoom) {
+            int currentPage = 0;
+            for (int i = 0; i < pageSizes.length; i++) {
+                float off = pageOffsets[i] * zoom - getPageSpacing(i) * zoom / 2f;
+                if (off >= offset) {
+                    break;
+                }
+                currentPage++;
+            }
+            return --currentPage >= 0 ? currentPage : 0;
+        }
+    }
+}
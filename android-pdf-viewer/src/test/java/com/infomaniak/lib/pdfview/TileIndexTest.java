@@ -0,0 +1,168 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.infomaniak.lib.pdfview.model.TileKey;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class TileIndexTest {
+
+    @Test
+    public void putGetAndReplace() {
+        TileIndex<String> index = new TileIndex<>(4);
+        long key = TileKey.of(2, 1, 8, 6, 3, 4);
+        assertNull(index.put(key, "first"));
+        assertEquals("first", index.get(key));
+        assertTrue(index.contains(key));
+        assertEquals("first", index.put(key, "second"));
+        assertEquals("second", index.get(key));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void zeroIsAValidKey() {
+        TileIndex<String> index = new TileIndex<>(4);
+        assertFalse(index.contains(0));
+        index.put(0, "zero");
+        assertEquals("zero", index.get(0));
+        assertEquals("zero", index.remove(0));
+        assertFalse(index.contains(0));
+    }
+
+    @Test
+    public void removeReturnsTheValue() {
+        TileIndex<String> index = new TileIndex<>(4);
+        long key = TileKey.thumbnail(7);
+        index.put(key, "thumbnail");
+        assertEquals("thumbnail", index.remove(key));
+        assertNull(index.remove(key));
+        assertNull(index.get(key));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void thumbnailAndOneCellPartAreDistinctEntries() {
+        TileIndex<String> index = new TileIndex<>(4);
+        index.put(TileKey.thumbnail(3), "thumbnail");
+        index.put(TileKey.of(3, 0, 1, 1, 0, 0), "part");
+        assertEquals(2, index.size());
+        assertEquals("thumbnail", index.get(TileKey.thumbnail(3)));
+        assertEquals("part", index.get(TileKey.of(3, 0, 1, 1, 0, 0)));
+    }
+
+    @Test
+    public void growsPastItsExpectedSize() {
+        TileIndex<Integer> index = new TileIndex<>(2);
+        List<Long> keys = gridKeys(9, 1, 20, 20);
+        for (int i = 0; i < keys.size(); i++) {
+            index.put(keys.get(i), i);
+        }
+        assertEquals(keys.size(), index.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(Integer.valueOf(i), index.get(keys.get(i)));
+        }
+    }
+
+    /**
+     * Removals shift the next entries of the probe chain back, every entry left must still be found
+     */
+    @Test
+    public void probeChainsSurviveRemovals() {
+        Random random = new Random(42);
+        TileIndex<Long> index = new TileIndex<>(16);
+        Map<Long, Long> expected = new HashMap<>();
+        List<Long> keys = new ArrayList<>();
+        for (int page = 0; page < 6; page++) {
+            keys.addAll(gridKeys(page, page % 3, 12, 9));
+        }
+        for (int step = 0; step < 20_000; step++) {
+            long key = keys.get(random.nextInt(keys.size()));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), index.remove(key));
+            } else {
+                Long value = random.nextLong();
+                assertEquals(expected.put(key, value), index.put(key, value));
+            }
+            assertEquals(expected.size(), index.size());
+        }
+        for (long key : keys) {
+            assertEquals(expected.get(key), index.get(key));
+            assertEquals(expected.containsKey(key), index.contains(key));
+        }
+    }
+
+    @Test
+    public void removingEveryEntryEmptiesTheIndex() {
+        TileIndex<Long> index = new TileIndex<>(8);
+        List<Long> keys = gridKeys(1, 2, 16, 16);
+        for (long key : keys) {
+            index.put(key, key);
+        }
+        // Remove in another order than inserted, so that entries are shifted back in the middle of chains
+        for (int i = keys.size() - 1; i >= 0; i -= 2) {
+            assertEquals(keys.get(i), index.remove(keys.get(i)));
+        }
+        for (int i = keys.size() - 2; i >= 0; i -= 2) {
+            assertEquals(keys.get(i), index.get(keys.get(i)));
+            assertEquals(keys.get(i), index.remove(keys.get(i)));
+        }
+        assertEquals(0, index.size());
+        for (long key : keys) {
+            assertFalse(index.contains(key));
+        }
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        TileIndex<Object> index = new TileIndex<>(8);
+        Object value = new Object();
+        for (long key : gridKeys(0, 1, 4, 4)) {
+            index.put(key, value);
+        }
+        index.clear();
+        assertEquals(0, index.size());
+        for (long key : gridKeys(0, 1, 4, 4)) {
+            assertNull(index.get(key));
+        }
+        index.put(TileKey.of(0, 1, 4, 4, 0, 0), value);
+        assertSame(value, index.get(TileKey.of(0, 1, 4, 4, 0, 0)));
+    }
+
+    private static List<Long> gridKeys(int page, int sizeLevel, int rows, int cols) {
+        List<Long> keys = new ArrayList<>();
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                keys.add(TileKey.of(page, sizeLevel, rows, cols, row, col));
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Infomaniak android-pdf-viewer
+ * Copyright (C) 2024 Infomaniak Network SA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.infomaniak.lib.pdfview.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TileKeyTest {
+
+    private static final int MAX_PAGE = (1 << 20) - 1;
+    private static final int MAX_SIZE_LEVEL = 7;
+
+    @Test
+    public void fieldsAreUnpacked() {
+        long key = TileKey.of(1234, 2, 40, 30, 17, 29);
+        assertEquals(1234, TileKey.page(key));
+        assertEquals(2, TileKey.sizeLevel(key));
+        assertEquals(40, TileKey.rows(key));
+        assertEquals(30, TileKey.cols(key));
+        assertEquals(17, TileKey.row(key));
+        assertEquals(29, TileKey.col(key));
+        assertFalse(TileKey.isThumbnail(key));
+    }
+
+    @Test
+    public void maximumValuesDontOverlap() {
+        int max = TileKey.MAX_GRID_SIZE;
+        long key = TileKey.of(MAX_PAGE, MAX_SIZE_LEVEL, max, max, max, max);
+        assertEquals(MAX_PAGE, TileKey.page(key));
+        assertEquals(MAX_SIZE_LEVEL, TileKey.sizeLevel(key));
+        assertEquals(max, TileKey.rows(key));
+        assertEquals(max, TileKey.cols(key));
+        assertEquals(max, TileKey.row(key));
+        assertEquals(max, TileKey.col(key));
+        assertFalse(TileKey.isThumbnail(key));
+    }
+
+    @Test
+    public void eachFieldOnlySetsItsOwnBits() {
+        int max = TileKey.MAX_GRID_SIZE;
+        assertOnly(TileKey.of(MAX_PAGE, 0, 0, 0, 0, 0), MAX_PAGE, 0, 0, 0, 0, 0);
+        assertOnly(TileKey.of(0, MAX_SIZE_LEVEL, 0, 0, 0, 0), 0, MAX_SIZE_LEVEL, 0, 0, 0, 0);
+        assertOnly(TileKey.of(0, 0, max, 0, 0, 0), 0, 0, max, 0, 0, 0);
+        assertOnly(TileKey.of(0, 0, 0, max, 0, 0), 0, 0, 0, max, 0, 0);
+        assertOnly(TileKey.of(0, 0, 0, 0, max, 0), 0, 0, 0, 0, max, 0);
+        assertOnly(TileKey.of(0, 0, 0, 0, 0, max), 0, 0, 0, 0, 0, max);
+    }
+
+    @Test
+    public void partSizeLevelTellsKeysApart() {
+        // Same grid, but parts twice as big, so rendered at twice the zoom
+        assertNotEquals(TileKey.of(3, 1, 4, 4, 1, 2), TileKey.of(3, 2, 4, 4, 1, 2));
+    }
+
+    @Test
+    public void thumbnailIsNotTheSinglePartOfAOneCellGrid() {
+        long thumbnail = TileKey.thumbnail(5);
+        assertTrue(TileKey.isThumbnail(thumbnail));
+        assertEquals(5, TileKey.page(thumbnail));
+        for (int sizeLevel = 0; sizeLevel <= MAX_SIZE_LEVEL; sizeLevel++) {
+            long part = TileKey.of(5, sizeLevel, 1, 1, 0, 0);
+            assertNotEquals(part, thumbnail);
+            assertFalse(TileKey.isThumbnail(part));
+        }
+    }
+
+    @Test
+    public void thumbnailsOfDifferentPagesDiffer() {
+        assertNotEquals(TileKey.thumbnail(0), TileKey.thumbnail(1));
+        assertEquals(MAX_PAGE, TileKey.page(TileKey.thumbnail(MAX_PAGE)));
+    }
+
+    private static void assertOnly(long key, int page, int sizeLevel, int rows, int cols, int row, int col) {
+        assertEquals(page, TileKey.page(key));
+        assertEquals(sizeLevel, TileKey.sizeLevel(key));
+        assertEquals(rows, TileKey.rows(key));
+        assertEquals(cols, TileKey.cols(key));
+        assertEquals(row, TileKey.row(key));
+        assertEquals(col, TileKey.col(key));
+        assertFalse(TileKey.isThumbnail(key));
+    }
+}